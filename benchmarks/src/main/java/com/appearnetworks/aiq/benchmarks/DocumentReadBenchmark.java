@@ -0,0 +1,107 @@
+package com.appearnetworks.aiq.benchmarks;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading a document body and writing it to a response.
+ *
+ * {@link #serializeTree} is how GET of a document worked before bodies were kept serialized: the stored tree was
+ * written through Jackson on every read. {@link #writeSerialized} is how it works now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentReadBenchmark {
+
+    private static final String ORG_ID = "appear";
+    private static final String SOLUTION_ID = "solution";
+    private static final int DOCUMENTS = 1000;
+
+    /**
+     * Number of fields in each document.
+     */
+    @Param({"10", "100"})
+    public int fields;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final InMemoryPersistenceService persistenceService = new InMemoryPersistenceService();
+    private final ObjectNode[] trees = new ObjectNode[DOCUMENTS];
+
+    @Setup
+    public void setup() throws Exception {
+        for (int i = 0; i < DOCUMENTS; i++) {
+            ObjectNode body = mapper.createObjectNode();
+            for (int field = 0; field < fields; field++) {
+                if (field % 3 == 0) {
+                    ArrayNode values = body.putArray("list" + field);
+                    values.add(field).add("value " + field).add(field * 0.5);
+                } else {
+                    body.put("field" + field, "value of field " + field + " in document " + i);
+                }
+            }
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, "docType", 0), body);
+            trees[i] = persistenceService.retrieve(ORG_ID, SOLUTION_ID, "doc" + i);
+        }
+    }
+
+    @Benchmark
+    public long serializeTree() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        mapper.writeValue(out, trees[ThreadLocalRandom.current().nextInt(DOCUMENTS)]);
+        return out.count;
+    }
+
+    @Benchmark
+    public long writeSerialized() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        SerializedDocument body = persistenceService.retrieveSerialized(ORG_ID, SOLUTION_ID, "doc" + ThreadLocalRandom.current().nextInt(DOCUMENTS));
+        out.write(body.json);
+        return out.count;
+    }
+
+    /**
+     * Cost of {@code retrieve}, which now parses a new tree on every call.
+     */
+    @Benchmark
+    public ObjectNode retrieveTree() {
+        return persistenceService.retrieve(ORG_ID, SOLUTION_ID, "doc" + ThreadLocalRandom.current().nextInt(DOCUMENTS));
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.appearnetworks.aiq.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run {@link PersistenceServiceBenchmark} at several thread counts, with the GC profiler, which also reports the
+ * bytes allocated per operation. Results of each thread count are written to {@code persistence-<threads>.json}.
+ *
+ * Arguments are backends to run, all of them by default, e.g. {@code journal}.
+ */
+public final class PersistenceBenchmarkRunner {
+
+    private static final int[] THREADS = {1, 4, 16};
+
+    private PersistenceBenchmarkRunner() { }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(PersistenceServiceBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("persistence-" + threads + ".json");
+            if (args.length > 0) {
+                options.param("backend", args);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
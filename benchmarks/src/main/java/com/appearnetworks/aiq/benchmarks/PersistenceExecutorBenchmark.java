@@ -0,0 +1,137 @@
+package com.appearnetworks.aiq.benchmarks;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.persistence.JournalingPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.PersistenceConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Time to serve a burst of document updates on the persistence executor, each of which waits for the journal to be
+ * forced. A pool of threads serves them a pool's worth at a time, while virtual threads serve all of them at once, so
+ * that more of them share a force. Both run with the same heap, against the same journaling store.
+ *
+ * Virtual threads need Java 21; on an older JDK both variants use the pool. {@code LoadTest} with
+ * {@code virtualthreads=true} measures the same through the whole web application.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms256m", "-Xmx256m"})
+public class PersistenceExecutorBenchmark {
+
+    private static final int THREADS = 32;
+    private static final int TENANTS = 10;
+    private static final String SOLUTION_ID = "solution";
+    private static final String DOC_TYPE = "docType";
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    /**
+     * Number of requests in each burst.
+     */
+    @Param({"1000"})
+    public int requests;
+
+    private ExecutorService executor;
+    private JournalingPersistenceService persistenceService;
+    private File directory;
+    private ObjectNode body;
+
+    /**
+     * Current revision of each document, which is updated by one request of each burst.
+     */
+    private long[] revisions;
+
+    @Setup
+    public void setup() throws Exception {
+        PersistenceConfig config = new PersistenceConfig();
+        set(config, "threads", THREADS);
+        set(config, "queueSize", requests);
+        set(config, "virtualThreads", virtualThreads);
+        executor = config.persistenceExecutor();
+
+        directory = Files.createTempDirectory("aiq-benchmark").toFile();
+        persistenceService = new JournalingPersistenceService(directory, 64 << 20);
+        body = new ObjectMapper().createObjectNode().put("field", "value");
+        revisions = new long[requests];
+        for (int doc = 0; doc < requests; doc++) {
+            revisions[doc] = persistenceService.insert(orgId(doc), SOLUTION_ID, new DocumentReference(docId(doc), DOC_TYPE, 0), body);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        executor.shutdownNow();
+        persistenceService.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * @return number of failed updates, which should be none
+     */
+    @Benchmark
+    public int burst() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(requests);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < requests; i++) {
+            int doc = i;
+            executor.execute(() -> {
+                try {
+                    revisions[doc] = persistenceService.update(orgId(doc), SOLUTION_ID,
+                                                               new DocumentReference(docId(doc), DOC_TYPE, revisions[doc]), body);
+                } catch (UpdateException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return failed.get();
+    }
+
+    private static String orgId(int doc) {
+        return "org" + (doc % TENANTS);
+    }
+
+    private static String docId(int doc) {
+        return "doc" + doc;
+    }
+
+    private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,222 @@
+package com.appearnetworks.aiq.benchmarks;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.JournalingPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.PersistenceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of the operations of a {@link PersistenceService}, so that backends can be compared on the same numbers
+ * and regressions in either of them caught.
+ *
+ * Every tenant is a solution of its own organization, holding the same number of documents. Each thread updates only
+ * its own share of them, so that it knows their revisions and no update conflicts. Inserts delete the document
+ * inserted a while before, so that the solutions do not grow during the run.
+ *
+ * Run with {@link PersistenceBenchmarkRunner} to cover several thread counts with GC and allocation profiling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class PersistenceServiceBenchmark {
+
+    private static final String SOLUTION_ID = "solution";
+    private static final String DOC_TYPE = "docType";
+    private static final int FIELDS = 10;
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"memory", "journal"})
+    public String backend;
+
+    @Param({"1", "100"})
+    public int tenants;
+
+    /**
+     * Number of documents in each solution.
+     */
+    @Param({"100", "1000"})
+    public int documents;
+
+    private PersistenceService persistenceService;
+    private File directory;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("journal".equals(backend)) {
+            directory = Files.createTempDirectory("aiq-benchmark").toFile();
+            persistenceService = new JournalingPersistenceService(directory, 64 << 20);
+        } else {
+            persistenceService = new InMemoryPersistenceService();
+        }
+
+        ObjectNode body = body(new ObjectMapper(), 0);
+        for (int tenant = 0; tenant < tenants; tenant++) {
+            for (int doc = 0; doc < documents; doc++) {
+                persistenceService.insert(orgId(tenant), SOLUTION_ID, new DocumentReference(docId(doc), DOC_TYPE, 0), body);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (persistenceService instanceof Closeable) {
+            ((Closeable) persistenceService).close();
+        }
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Share of the documents which a thread updates, and documents it has inserted.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private static final int INSERTED = 1000;
+
+        private final ObjectMapper mapper = new ObjectMapper();
+        private ObjectNode body;
+        private int thread;
+        private int threads;
+        private long[][] revisions;
+        private final DocumentReference[] inserted = new DocumentReference[INSERTED];
+        private final int[] insertedTenant = new int[INSERTED];
+        private long insertions;
+
+        @Setup
+        public void setup(PersistenceServiceBenchmark benchmark, ThreadParams params) {
+            thread = params.getThreadIndex();
+            threads = params.getThreadCount();
+            body = body(mapper, thread);
+            revisions = new long[benchmark.tenants][benchmark.documents];
+            for (long[] tenant : revisions) {
+                Arrays.fill(tenant, 1);
+            }
+        }
+    }
+
+    /**
+     * Share of reads in {@link #mixed}, the rest are updates.
+     */
+    @State(Scope.Benchmark)
+    public static class Mix {
+        @Param({"0.95", "0.5"})
+        public double reads;
+    }
+
+    @Benchmark
+    public SerializedDocument retrieve() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return persistenceService.retrieveSerialized(orgId(random.nextInt(tenants)), SOLUTION_ID, docId(random.nextInt(documents)));
+    }
+
+    @Benchmark
+    public long update(Writer writer) throws UpdateException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int tenant = random.nextInt(tenants);
+        int share = (documents + writer.threads - 1 - writer.thread) / writer.threads;
+        if (share == 0) {
+            return 0;
+        }
+        int doc = writer.thread + random.nextInt(share) * writer.threads;
+        long revision = persistenceService.update(orgId(tenant), SOLUTION_ID,
+                                                  new DocumentReference(docId(doc), DOC_TYPE, writer.revisions[tenant][doc]),
+                                                  writer.body);
+        writer.revisions[tenant][doc] = revision;
+        return revision;
+    }
+
+    @Benchmark
+    public long insert(Writer writer) throws UpdateException {
+        long n = writer.insertions++;
+        int slot = (int) (n % Writer.INSERTED);
+        if (writer.inserted[slot] != null) {
+            persistenceService.delete(orgId(writer.insertedTenant[slot]), SOLUTION_ID, writer.inserted[slot]);
+        }
+
+        int tenant = (int) (n % tenants);
+        String docId = "inserted-" + writer.thread + '-' + n;
+        long revision = persistenceService.insert(orgId(tenant), SOLUTION_ID, new DocumentReference(docId, DOC_TYPE, 0), writer.body);
+        writer.inserted[slot] = new DocumentReference(docId, DOC_TYPE, revision);
+        writer.insertedTenant[slot] = tenant;
+        return revision;
+    }
+
+    @Benchmark
+    public Object mixed(Writer writer, Mix mix) throws UpdateException {
+        if (ThreadLocalRandom.current().nextDouble() < mix.reads) {
+            return retrieve();
+        }
+        return update(writer);
+    }
+
+    /**
+     * Iterate over all documents of a solution.
+     */
+    @Benchmark
+    public int list() {
+        int count = 0;
+        for (DocumentReference ignored : persistenceService.list(orgId(ThreadLocalRandom.current().nextInt(tenants)), SOLUTION_ID)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read the first page of a solution's documents.
+     */
+    @Benchmark
+    public DocumentPage listPage() {
+        return persistenceService.list(orgId(ThreadLocalRandom.current().nextInt(tenants)), SOLUTION_ID, null, PAGE_SIZE);
+    }
+
+    private static String orgId(int tenant) {
+        return "org" + tenant;
+    }
+
+    private static String docId(int doc) {
+        return "doc" + doc;
+    }
+
+    private static ObjectNode body(ObjectMapper mapper, int seed) {
+        ObjectNode body = mapper.createObjectNode();
+        for (int field = 0; field < FIELDS; field++) {
+            body.put("field" + field, "value of field " + field + " written by " + seed);
+        }
+        return body;
+    }
+}
@@ -0,0 +1,465 @@
+package com.appearnetworks.aiq.benchmarks.load;
+
+import com.appearnetworks.aiq.multitenant.metrics.LatencyHistogram;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.plus.jndi.EnvEntry;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.webapp.Configuration;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load test of one adapter over HTTP, through authentication, Spring MVC and Jackson like in production.
+ *
+ * The webapp is started in process on Jetty, from {@code src/main/webapp} with its own {@code web.xml} and
+ * application context, next to a stub of the platform which it registers with. Requests are then sent at a fixed
+ * rate, open loop: each is sent when it is due, whether or not earlier ones have been answered, and its latency is
+ * measured from when it was due. A slow server therefore shows up as latency, instead of as a lower rate of requests
+ * which all look fast.
+ *
+ * Options, as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code rate} requests per second, default 500</li>
+ * <li>{@code duration} and {@code warmup} seconds, default 30 and 10</li>
+ * <li>{@code mix} relative weights of the operations, default {@code get=50,update=20,insert=10,delete=10,heartbeat=5,list=5}</li>
+ * <li>{@code tenants} and {@code documents} per tenant, default 10 and 1000</li>
+ * <li>{@code connections} and threads sending requests, default 64</li>
+ * <li>{@code directory} of the document log, documents are only kept in memory by default</li>
+ * <li>{@code virtualthreads} to run requests on virtual threads rather than the pool, default false; needs Java 21</li>
+ * <li>{@code webapp} directory, default {@code ../src/main/webapp}</li>
+ * <li>{@code result} file of the results as JSON, default {@code load-results.json}</li>
+ * </ul>
+ * Updates and deletes need a document whose revision is known and which no other request is writing; when there is
+ * none, they are skipped and counted.
+ */
+public final class LoadTest {
+
+    enum Operation { GET, UPDATE, INSERT, DELETE, HEARTBEAT, LIST }
+
+    private static final String SOLUTION_ID = "solution";
+    private static final String DOC_TYPE = "docType";
+    private static final String PLATFORM_USER = "AIQ8Platform";
+    private static final int BATCH_SIZE = 1000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILES = {"p50", "p90", "p99", "p99.9"};
+
+    private static final class Document {
+        final int tenant;
+        final String id;
+        final long revision;
+
+        Document(int tenant, String id, long revision) {
+            this.tenant = tenant;
+            this.id = id;
+            this.revision = revision;
+        }
+    }
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> options;
+    private final int rate;
+    private final int tenants;
+    private final int documents;
+    private final Operation[] mix;
+
+    private String baseUrl;
+    private String authorization;
+    private CloseableHttpClient client;
+    private byte[] body;
+
+    private final ConcurrentLinkedQueue<Document> updatable = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Document> inserted = new ConcurrentLinkedQueue<>();
+    private final AtomicLong insertions = new AtomicLong();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        rate = Integer.parseInt(option("rate", "500"));
+        tenants = Integer.parseInt(option("tenants", "10"));
+        documents = Integer.parseInt(option("documents", "1000"));
+        mix = parseMix(option("mix", "get=50,update=20,insert=10,delete=10,heartbeat=5,list=5"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception {
+        int port = freePort();
+        baseUrl = "http://localhost:" + port + "/aiq/integration/";
+        PlatformStub platform = new PlatformStub();
+        Server server = startServer(port, platform);
+        try {
+            String password = platform.password.get(60, TimeUnit.SECONDS);
+            authorization = "Basic " + Base64.encodeBase64String((PLATFORM_USER + ':' + password).getBytes(StandardCharsets.UTF_8));
+
+            int connections = Integer.parseInt(option("connections", "64"));
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(connections);
+            connectionManager.setDefaultMaxPerRoute(connections);
+            client = HttpClients.custom().setConnectionManager(connectionManager).build();
+            body = mapper.writeValueAsBytes(body());
+
+            seed();
+            ExecutorService senders = Executors.newFixedThreadPool(connections);
+            try {
+                System.out.println("Warming up at " + rate + " requests/s");
+                send(senders, Long.parseLong(option("warmup", "10")));
+                System.out.println("Measuring at " + rate + " requests/s");
+                long duration = Long.parseLong(option("duration", "30"));
+                Map<Operation, Stats> results = send(senders, duration);
+                report(results, duration);
+            } finally {
+                senders.shutdownNow();
+                client.close();
+            }
+        } finally {
+            // before the connectors, so that the adapter can still unregister
+            server.getChildHandlerByClass(WebAppContext.class).stop();
+            server.stop();
+        }
+    }
+
+    private Server startServer(int port, PlatformStub platform) throws Exception {
+        File properties = File.createTempFile("aiq-load", ".properties");
+        properties.deleteOnExit();
+        Properties aiq = new Properties();
+        aiq.setProperty("aiq.url", "http://localhost:" + port + "/platform/api/");
+        aiq.setProperty("aiq.orgname", "load");
+        aiq.setProperty("aiq.username", "load");
+        aiq.setProperty("aiq.password", "load");
+        aiq.setProperty("aiq.integration.url", baseUrl);
+        aiq.setProperty("aiq.persistence.directory", option("directory", ""));
+        aiq.setProperty("aiq.persistence.virtualthreads", option("virtualthreads", "false"));
+        try (Writer out = new FileWriter(properties)) {
+            aiq.store(out, "Load test");
+        }
+
+        Server server = new Server(port);
+        Configuration.ClassList.setServerDefault(server).addAfter(
+                "org.eclipse.jetty.webapp.FragmentConfiguration",
+                "org.eclipse.jetty.plus.webapp.EnvConfiguration",
+                "org.eclipse.jetty.plus.webapp.PlusConfiguration");
+        new EnvEntry(server, "propertiesLocation", properties.toURI().toString(), false);
+
+        String webappDirectory = option("webapp", "../src/main/webapp");
+        WebAppContext webapp = new WebAppContext();
+        webapp.setContextPath("/");
+        webapp.setResourceBase(webappDirectory);
+        webapp.setDescriptor(webappDirectory + "/WEB-INF/web.xml");
+        // the adapter's classes are on the class path of the load test
+        webapp.setParentLoaderPriority(true);
+
+        ServletContextHandler platformContext = new ServletContextHandler();
+        platformContext.setContextPath("/platform");
+        platformContext.addServlet(new ServletHolder(platform), "/api/*");
+
+        ContextHandlerCollection contexts = new ContextHandlerCollection();
+        contexts.addHandler(platformContext);
+        contexts.addHandler(webapp);
+        server.setHandler(contexts);
+        server.start();
+        if (webapp.getUnavailableException() != null) {
+            server.stop();
+            throw new IllegalStateException("Could not start the webapp", webapp.getUnavailableException());
+        }
+
+        // the webapp logs every write at INFO, which would measure the console
+        Logger.getLogger("com.appearnetworks").setLevel(Level.parse(option("loglevel", "WARNING")));
+        return server;
+    }
+
+    /**
+     * Insert the documents of all tenants in batches, all of which can then be updated.
+     */
+    private void seed() throws IOException {
+        System.out.println("Inserting " + documents + " documents in each of " + tenants + " tenants");
+        for (int tenant = 0; tenant < tenants; tenant++) {
+            for (int first = 0; first < documents; first += BATCH_SIZE) {
+                ObjectNode batch = mapper.createObjectNode();
+                ArrayNode writes = batch.putArray("documents");
+                for (int doc = first; doc < Math.min(first + BATCH_SIZE, documents); doc++) {
+                    ObjectNode write = writes.addObject();
+                    write.put("_type", DOC_TYPE);
+                    write.put("_id", docId(doc));
+                    write.set("body", body());
+                }
+
+                HttpPost post = new HttpPost(solutionUrl(tenant) + "datasync");
+                post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(batch), ContentType.APPLICATION_JSON));
+                JsonNode results = mapper.readTree(EntityUtils.toString(execute(post).getEntity()));
+                for (JsonNode result : results.path("results")) {
+                    if (result.path("status").asInt() != 201) {
+                        throw new IllegalStateException("Could not insert " + result);
+                    }
+                    updatable.add(new Document(tenant, result.path("_id").asText(), revision(result.path("etag").asText())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Send requests at the rate for a while, then wait for the last ones to be answered.
+     */
+    private Map<Operation, Stats> send(ExecutorService senders, long seconds) throws InterruptedException {
+        Map<Operation, Stats> results = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            results.put(operation, new Stats());
+        }
+
+        AtomicInteger outstanding = new AtomicInteger();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Operation operation = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+            outstanding.incrementAndGet();
+            senders.execute(() -> {
+                try {
+                    perform(operation, due, results.get(operation));
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+            });
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return results;
+    }
+
+    private void perform(Operation operation, long due, Stats stats) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Document document = null;
+        HttpRequestBase request;
+        int expected;
+        switch (operation) {
+            case GET:
+                request = new HttpGet(documentUrl(random.nextInt(tenants), docId(random.nextInt(documents))));
+                expected = 200;
+                break;
+            case UPDATE:
+                document = updatable.poll();
+                if (document == null) {
+                    stats.skipped.increment();
+                    return;
+                }
+                HttpPut update = new HttpPut(documentUrl(document.tenant, document.id));
+                update.setHeader("If-Match", "\"" + document.revision + '"');
+                update.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+                request = update;
+                expected = 204;
+                break;
+            case INSERT:
+                document = new Document(random.nextInt(tenants), "load-" + insertions.incrementAndGet(), 0);
+                HttpPut insert = new HttpPut(documentUrl(document.tenant, document.id));
+                insert.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+                request = insert;
+                expected = 201;
+                break;
+            case DELETE:
+                document = inserted.poll();
+                if (document == null) {
+                    stats.skipped.increment();
+                    return;
+                }
+                request = new HttpDelete(documentUrl(document.tenant, document.id));
+                request.setHeader("If-Match", "\"" + document.revision + '"');
+                expected = 204;
+                break;
+            case HEARTBEAT:
+                request = new HttpGet(solutionUrl(random.nextInt(tenants)) + "heartbeat");
+                expected = 200;
+                break;
+            default:
+                request = new HttpGet(solutionUrl(random.nextInt(tenants)) + "datasync");
+                expected = 200;
+        }
+
+        boolean success = false;
+        try {
+            HttpResponse response = execute(request);
+            EntityUtils.consume(response.getEntity());
+            success = response.getStatusLine().getStatusCode() == expected;
+            if (success && (operation == Operation.UPDATE || operation == Operation.INSERT)) {
+                Document written = new Document(document.tenant, document.id, revision(response.getFirstHeader("ETag").getValue()));
+                (operation == Operation.UPDATE ? updatable : inserted).add(written);
+            }
+        } catch (IOException ignored) {
+            // counted as an error
+        } finally {
+            stats.latency.record(System.nanoTime() - due);
+            if (!success) {
+                // a document which failed to update has an unknown revision, and is not written again
+                stats.errors.increment();
+            }
+        }
+    }
+
+    private HttpResponse execute(HttpRequestBase request) throws IOException {
+        request.setHeader("Authorization", authorization);
+        request.setHeader("X-AIQ-UserId", "load");
+        request.setHeader("X-AIQ-DeviceId", "load");
+        return client.execute(request);
+    }
+
+    private void report(Map<Operation, Stats> results, long seconds) throws IOException {
+        ObjectNode json = mapper.createObjectNode();
+        json.put("rate", rate);
+        json.put("duration", seconds);
+        json.put("tenants", tenants);
+        json.put("documents", documents);
+        ObjectNode operations = json.putObject("operations");
+
+        System.out.println(String.format(Locale.ROOT, "%-10s %10s %8s %8s %10s %9s %9s %9s %9s",
+                                         "operation", "count", "errors", "skipped", "per s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+        long[] percentiles = new long[QUANTILES.length];
+        for (Map.Entry<Operation, Stats> entry : results.entrySet()) {
+            Stats stats = entry.getValue();
+            long count = stats.latency.percentiles(QUANTILES, percentiles);
+            ObjectNode operation = operations.putObject(entry.getKey().name().toLowerCase(Locale.ROOT));
+            operation.put("count", count);
+            operation.put("errors", stats.errors.sum());
+            operation.put("skipped", stats.skipped.sum());
+            operation.put("throughput", count / (double) seconds);
+            for (int q = 0; q < QUANTILES.length; q++) {
+                operation.put(PERCENTILES[q], millis(percentiles[q]));
+            }
+            System.out.println(String.format(Locale.ROOT, "%-10s %10d %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f",
+                                             entry.getKey().name().toLowerCase(Locale.ROOT), count, stats.errors.sum(),
+                                             stats.skipped.sum(), count / (double) seconds, millis(percentiles[0]),
+                                             millis(percentiles[1]), millis(percentiles[2]), millis(percentiles[3])));
+        }
+
+        File result = new File(option("result", "load-results.json"));
+        mapper.writerWithDefaultPrettyPrinter().writeValue(result, json);
+        System.out.println("Results written to " + result);
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return operations repeated by their weights, to pick from at random
+     */
+    private static Operation[] parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] weight = part.split("=");
+            Operation operation = Operation.valueOf(weight[0].trim().toUpperCase(Locale.ROOT));
+            int value = Integer.parseInt(weight[1].trim());
+            weights.put(operation, value);
+            total += value;
+        }
+        Operation[] operations = new Operation[total];
+        int i = 0;
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            for (int n = 0; n < weight.getValue(); n++) {
+                operations[i++] = weight.getKey();
+            }
+        }
+        return operations;
+    }
+
+    private ObjectNode body() {
+        ObjectNode body = mapper.createObjectNode();
+        for (int field = 0; field < 10; field++) {
+            body.put("field" + field, "value of field " + field);
+        }
+        return body;
+    }
+
+    private String solutionUrl(int tenant) {
+        return baseUrl + "org" + tenant + '/' + SOLUTION_ID + '/';
+    }
+
+    private String documentUrl(int tenant, String docId) {
+        return solutionUrl(tenant) + "datasync/" + DOC_TYPE + '/' + docId;
+    }
+
+    private static String docId(int doc) {
+        return "doc" + doc;
+    }
+
+    private static long revision(String etag) {
+        return Long.parseLong(etag.replace("\"", ""));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
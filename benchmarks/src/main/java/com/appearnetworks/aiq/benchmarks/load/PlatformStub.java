@@ -0,0 +1,66 @@
+package com.appearnetworks.aiq.benchmarks.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Just enough of the platform for the adapter to register with it: the root menu, a token and the adapter link.
+ * The password the adapter registers with is kept, so that the load test can authenticate as the platform.
+ */
+class PlatformStub extends HttpServlet {
+    private static final String TOKEN = "token";
+    private static final String ADAPTER = "adapter";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    final CompletableFuture<String> password = new CompletableFuture<>();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ObjectNode menu = mapper.createObjectNode();
+        menu.putObject("links").put(TOKEN, TOKEN);
+        write(response, menu);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!request.getRequestURI().endsWith('/' + TOKEN)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        ObjectNode token = mapper.createObjectNode();
+        token.put("access_token", "load-test");
+        token.put("token_type", "bearer");
+        token.put("expires_in", "3600");
+        token.putObject("links").put(ADAPTER, ADAPTER);
+        write(response, token);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!request.getRequestURI().endsWith('/' + ADAPTER)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        JsonNode registration = mapper.readTree(request.getInputStream());
+        password.complete(registration.path("integrationPassword").asText());
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    private void write(HttpServletResponse response, ObjectNode body) throws IOException {
+        response.setContentType("application/json");
+        mapper.writeValue(response.getOutputStream(), body);
+    }
+}
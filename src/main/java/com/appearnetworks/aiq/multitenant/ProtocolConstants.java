@@ -2,9 +2,16 @@ package com.appearnetworks.aiq.multitenant;
 
 public final class ProtocolConstants {
     // Standard HTTP headers
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
     public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_RANGE = "Content-Range";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String ETAG = "ETag";
     public static final String IF_MATCH = "If-Match";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_RANGE = "If-Range";
+    public static final String RANGE = "Range";
+    public static final String RETRY_AFTER = "Retry-After";
     public static final String SLUG = "Slug";
 
     // Custom HTTP headers
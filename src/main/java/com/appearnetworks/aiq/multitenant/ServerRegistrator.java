@@ -8,28 +8,147 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Register the IA with server on startup, and unregister on shutdown.
+ *
+ * Registration is done in the background, so that startup does not wait for the server. Failed attempts are retried
+ * with exponential backoff and jitter. Once registered, the IA registers again at an interval, and whenever the server
+ * calls with a password other than the current one, in case the server has lost or not yet seen the registration.
  */
 @Component
 public class ServerRegistrator {
-    private String password;
+    private static final Logger LOGGER = Logger.getLogger(ServerRegistrator.class.getName());
+
+    private static final String PLATFORM_INTEGRATION_USER = "AIQ8Platform";
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+
+    private static final long MIN_REREGISTER_INTERVAL_MILLIS = 10000;
+
+    private volatile String password;
+
+    private volatile byte[] credentials;
+
+    private volatile boolean registered;
 
     @Value("${aiq.integration.url}")
     private String integrationUrl;
 
+    @Value("${aiq.integration.reregisterinterval:3600}")
+    private long reregisterInterval;
+
+    @Value("${aiq.integration.maxretrydelay:300}")
+    private long maxRetryDelay;
+
     @Autowired
     private IntegrationService integrationService;
 
     private SecureRandom random = new SecureRandom();
 
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> scheduledRegistration;
+    private long retryDelay = MIN_RETRY_DELAY_MILLIS;
+    private long lastAttempt;
+
+    // earliest time at which reregister() is passed on again
+    private final AtomicLong nextReregister = new AtomicLong();
+
     @PostConstruct
     public void register() {
         if (!integrationUrl.isEmpty()) {
-            password = generateRandomPassword();
-            integrationService.register(integrationUrl, password);
+            setPassword(generateRandomPassword());
+            schedule(0);
+        }
+    }
+
+    /**
+     * Register again now, unless registration is already being retried or was attempted recently. Called on the request
+     * thread when the server uses a password other than the current one, which may happen on every request of a client
+     * with a wrong password; so it only takes a lock-free check there, and at most one call per interval is passed on
+     * to the registration thread.
+     */
+    public void reregister() {
+        if (!registered) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextReregister.get();
+        if (now < next || !nextReregister.compareAndSet(next, now + MIN_REREGISTER_INTERVAL_MILLIS)) {
+            return;
+        }
+        try {
+            scheduler.execute(this::reregisterNow);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * @return whether the server has accepted the current password, or no registration is needed
+     */
+    public boolean isRegistered() {
+        return registered || password == null;
+    }
+
+    private synchronized void reregisterNow() {
+        if (registered
+                && System.currentTimeMillis() - lastAttempt >= MIN_REREGISTER_INTERVAL_MILLIS
+                && scheduledRegistration.getDelay(TimeUnit.MILLISECONDS) > 0) {
+            schedule(0);
+        }
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        if (scheduledRegistration != null) {
+            scheduledRegistration.cancel(false);
+        }
+        scheduledRegistration = scheduler.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            lastAttempt = System.currentTimeMillis();
+        }
+        try {
+            if (!integrationService.register(integrationUrl, password)) {
+                throw new IllegalStateException("Server does not know the adapter");
+            }
+            if (!registered) {
+                LOGGER.info("Registered with server");
+            }
+            registered = true;
+            synchronized (this) {
+                retryDelay = MIN_RETRY_DELAY_MILLIS;
+                schedule(TimeUnit.SECONDS.toMillis(reregisterInterval));
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                // jitter, so that adapters restarted together do not retry in step
+                long delay = ThreadLocalRandom.current().nextLong(retryDelay / 2, retryDelay + 1);
+                LOGGER.log(Level.WARNING, "Could not register with server, retrying in " + delay + " ms", e);
+                retryDelay = Math.min(retryDelay * 2, TimeUnit.SECONDS.toMillis(maxRetryDelay));
+                schedule(delay);
+            }
         }
     }
 
@@ -39,13 +158,34 @@ public class ServerRegistrator {
 
     @PreDestroy
     public void unregister() {
-        if (!integrationUrl.isEmpty()) {
-            integrationService.unregister();
+        scheduler.shutdownNow();
+        if (registered) {
+            try {
+                integrationService.unregister();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not unregister from server", e);
+            }
         }
-        password = null;
+        registered = false;
+        setPassword(null);
+    }
+
+    private void setPassword(String password) {
+        credentials = (password != null)
+                ? (PLATFORM_INTEGRATION_USER + ':' + password).getBytes(StandardCharsets.UTF_8)
+                : null;
+        this.password = password;
     }
 
     public String getPassword() {
         return password;
     }
+
+    /**
+     * @return user and password which the server is expected to send in basic authentication, or {@code null} if the
+     *         password is not set
+     */
+    public byte[] getCredentials() {
+        return credentials;
+    }
 }
@@ -1,9 +1,12 @@
 package com.appearnetworks.aiq.multitenant;
 
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
 import org.apache.commons.codec.binary.Base64;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.servlet.config.annotation.DefaultServletHandlerConfigurer;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -12,24 +15,63 @@ import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 @Configuration
 @EnableWebMvc
 public class WebConfig extends WebMvcConfigurerAdapter {
-    private static final String PLATFORM_INTEGRATION_USER = "AIQ8Platform";
+    private static final String AUTHORIZATION_HEADER = "Authorization";
     private static final String REALM = "AIQ8IntegrationAdapter";
+    private static final String RETRY_AFTER_SECONDS = "5";
+    private static final String START_ATTRIBUTE = WebConfig.class.getName() + ".start";
+    private static final String AUTHORIZED_ATTRIBUTE = WebConfig.class.getName() + ".authorized";
+    private static final String ORG_ID = "orgId";
+    private static final String SOLUTION_ID = "solutionId";
 
     @Autowired
     private ServerRegistrator serverRegistrator;
 
+    @Autowired
+    private Metrics metrics;
+
+    // looked up by endpoint and tenant, so that recording a request does not build their labels
+    private final ConcurrentMap<String, Metrics.Timer> endpointTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Tenant, Metrics.Timer> tenantTimers = new ConcurrentHashMap<>();
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        // first, so that authentication is included
+        registry.addInterceptor(new HandlerInterceptorAdapter() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                // also called again when an asynchronous request is dispatched to complete it
+                if (request.getAttribute(START_ATTRIBUTE) == null)
+                    request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+                return true;
+            }
+
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+                recordLatency(request, response, handler, ex);
+            }
+        }).addPathPatterns("/aiq/integration/**");
         registry.addInterceptor(new HandlerInterceptorAdapter() {
             @Override
             public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
-                if (isAuthorized(request))
+                if (isAuthorized(request)) {
+                    request.setAttribute(AUTHORIZED_ATTRIBUTE, Boolean.TRUE);
                     return super.preHandle(request, response, handler);
-                else {
+                } else if (!serverRegistrator.isRegistered()) {
+                    // the server may still have the password of an earlier registration
+                    response.setHeader(ProtocolConstants.RETRY_AFTER, RETRY_AFTER_SECONDS);
+                    response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+                    return false;
+                } else {
+                    serverRegistrator.reregister();
                     response.setHeader("WWW-Authenticate", "Basic realm=\"" + REALM + "\"");
                     response.sendError(HttpStatus.UNAUTHORIZED.value());
                     return false;
@@ -38,23 +80,96 @@ public class WebConfig extends WebMvcConfigurerAdapter {
         }).addPathPatterns("/aiq/integration/**");
     }
 
+    private void recordLatency(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Long start = (Long) request.getAttribute(START_ATTRIBUTE);
+        if (start == null)
+            return;
+
+        String endpoint = (handler instanceof HandlerMethod) ? ((HandlerMethod) handler).getMethod().getName() : "other";
+        boolean error = ex != null || response.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR.value();
+        Metrics.Timer timer = endpointTimers.get(endpoint);
+        if (timer == null) {
+            timer = metrics.timer(Metrics.REQUESTS, "endpoint", endpoint);
+            endpointTimers.putIfAbsent(endpoint, timer);
+        }
+        timer.record(start, error);
+
+        // only for authorized requests, whose organization and solution are known to the server
+        if (request.getAttribute(AUTHORIZED_ATTRIBUTE) == null)
+            return;
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (variables != null && variables.containsKey(ORG_ID)) {
+            tenantTimer(endpoint, variables.get(ORG_ID), variables.get(SOLUTION_ID)).record(start, error);
+        }
+    }
+
+    private Metrics.Timer tenantTimer(String endpoint, String orgId, String solutionId) {
+        Tenant tenant = new Tenant(endpoint, orgId, solutionId);
+        Metrics.Timer timer = tenantTimers.get(tenant);
+        if (timer == null) {
+            timer = metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", endpoint, "org", orgId, "solution", solutionId);
+            // no more tenants than metrics has timers for, beyond which they share one anyway
+            if (tenantTimers.size() < Metrics.MAX_TIMERS)
+                tenantTimers.putIfAbsent(tenant, timer);
+        }
+        return timer;
+    }
+
     private boolean isAuthorized(HttpServletRequest request) {
+        byte[] credentials = serverRegistrator.getCredentials();
         // no authentication if password is not set
-        if (serverRegistrator.getPassword() == null)
+        if (credentials == null)
             return true;
 
-        String authHeader = request.getHeader("Authorization");
-        if (authHeader == null) {
+        return matches(request.getHeader(AUTHORIZATION_HEADER), credentials);
+    }
+
+    /**
+     * Compare the credentials in a basic authentication header, decoded as leniently as before, in time which does not
+     * depend on where they differ.
+     */
+    public static boolean matches(String authHeader, byte[] credentials) {
+        if (authHeader == null)
             return false;
-        }
-        String encodedValue = authHeader.split(" ")[1];
-        String decodedValue = new String(Base64.decodeBase64(encodedValue));
-        String authPair = PLATFORM_INTEGRATION_USER + ":" + serverRegistrator.getPassword();
-        return decodedValue.equals(authPair);
+        int start = authHeader.indexOf(' ') + 1;
+        if (start == 0)
+            return false;
+        int end = authHeader.indexOf(' ', start);
+        if (end < 0)
+            end = authHeader.length();
+
+        return MessageDigest.isEqual(Base64.decodeBase64(authHeader.substring(start, end)), credentials);
     }
 
     @Override
     public void configureDefaultServletHandling(DefaultServletHandlerConfigurer configurer) {
         configurer.enable();
     }
+
+    private static final class Tenant {
+        private final String endpoint;
+        private final String orgId;
+        private final String solutionId;
+
+        Tenant(String endpoint, String orgId, String solutionId) {
+            this.endpoint = endpoint;
+            this.orgId = orgId;
+            this.solutionId = solutionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tenant))
+                return false;
+            Tenant other = (Tenant) o;
+            return endpoint.equals(other.endpoint) && Objects.equals(orgId, other.orgId)
+                    && Objects.equals(solutionId, other.solutionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (endpoint.hashCode() * 31 + Objects.hashCode(orgId)) * 31 + Objects.hashCode(solutionId);
+        }
+    }
 }
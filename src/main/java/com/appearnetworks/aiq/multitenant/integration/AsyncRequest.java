@@ -0,0 +1,334 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A request run on the persistence executor, and its timeout, which fires on a container thread. Whichever comes first
+ * decides how the request is answered:
+ * <ul>
+ * <li>a request which times out while queued is never run, and fails with a {@link TimeoutException}, so that the
+ *     client is asked to retry it;</li>
+ * <li>one which times out while running may still change documents, so it fails with a {@link StillRunningException}
+ *     instead, and completes in the background. Whatever it wrote to the response is discarded, unless it has already
+ *     been sent, in which case the response is cut short.</li>
+ * </ul>
+ * Once timed out, the response is no longer touched, since the container may be answering it or have recycled it for
+ * another request. Every change to the response holds the lock which the timeout takes, so that the timeout waits for
+ * one in progress, and those after it are ignored or fail.
+ */
+final class AsyncRequest<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncRequest.class.getName());
+
+    /**
+     * A request which writes the response itself, and returns {@code null}.
+     */
+    interface Task<T> {
+        /**
+         * @param response  the response, which ignores changes once timed out, and whose output stream fails
+         */
+        T call(HttpServletResponse response) throws Exception;
+    }
+
+    /**
+     * A request timed out while it was running, and completes in the background.
+     */
+    static final class StillRunningException extends Exception {
+        StillRunningException() {
+            super("Request timed out while running");
+        }
+    }
+
+    private final DeferredResult<T> result;
+    private final long timeout;
+    private final GuardedResponse response;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private boolean started;
+    private boolean completed;
+    private boolean timedOut;
+    private T value;
+    private Exception error;
+
+    /**
+     * @param timeout   milliseconds before the request times out
+     * @param response  the response, or {@code null} if the request returns its result instead of writing it
+     */
+    AsyncRequest(long timeout, HttpServletResponse response) {
+        this.result = new DeferredResult<>(timeout);
+        this.timeout = timeout;
+        this.response = (response != null) ? new GuardedResponse(response) : null;
+        result.onTimeout(this::timeOut);
+    }
+
+    DeferredResult<T> result() {
+        return result;
+    }
+
+    /**
+     * Run the request, unless it has timed out, and set its result on {@code completionExecutor}, unless it has timed
+     * out by then.
+     */
+    void run(Task<T> task, Executor completionExecutor) {
+        lock.lock();
+        try {
+            if (timedOut) {
+                return;
+            }
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            T value = task.call(response);
+            if (complete(value, null)) {
+                completionExecutor.execute(() -> result.setResult(value));
+            }
+        } catch (Exception e) {
+            if (complete(null, e)) {
+                completionExecutor.execute(() -> result.setErrorResult(e));
+            } else {
+                LOGGER.log(Level.FINE, "Request failed after it timed out", e);
+            }
+        }
+    }
+
+    /**
+     * Fail a request which could not be queued.
+     */
+    void reject(Exception e) {
+        result.setErrorResult(e);
+    }
+
+    /**
+     * @return {@code false} if the request has timed out, and has been answered
+     */
+    private boolean complete(T value, Exception error) {
+        lock.lock();
+        try {
+            if (timedOut) {
+                return false;
+            }
+            completed = true;
+            this.value = value;
+            this.error = error;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void timeOut() {
+        lock.lock();
+        try {
+            timedOut = true;
+            if (completed) {
+                // its result is on its way, and may as well be sent now
+                if (error != null) {
+                    result.setErrorResult(error);
+                } else {
+                    result.setResult(value);
+                }
+            } else if (!started) {
+                LOGGER.warning("Request timed out after " + timeout + " ms while queued");
+                result.setErrorResult(new TimeoutException());
+            } else {
+                LOGGER.warning("Request timed out after " + timeout + " ms while running, it completes in the background");
+                if (response != null && !response.getResponse().isCommitted()) {
+                    response.getResponse().reset();
+                }
+                result.setErrorResult(new StillRunningException());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the lock for a change to the response, unless the request has timed out.
+     *
+     * @return {@code false} if timed out, without the lock
+     */
+    private boolean lockResponse() {
+        lock.lock();
+        if (timedOut) {
+            lock.unlock();
+            return false;
+        }
+        return true;
+    }
+
+    private void lockOutput() throws IOException {
+        if (!lockResponse()) {
+            throw new IOException("Request timed out");
+        }
+    }
+
+    private final class GuardedResponse extends HttpServletResponseWrapper {
+
+        private ServletOutputStream outputStream;
+
+        GuardedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int status) {
+            if (lockResponse()) {
+                try {
+                    super.setStatus(status);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (lockResponse()) {
+                try {
+                    super.setHeader(name, value);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (lockResponse()) {
+                try {
+                    super.addHeader(name, value);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void setContentType(String type) {
+            if (lockResponse()) {
+                try {
+                    super.setContentType(type);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            if (lockResponse()) {
+                try {
+                    super.setContentLength(length);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            lockOutput();
+            try {
+                super.sendError(status);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            lockOutput();
+            try {
+                super.sendError(status, message);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            lockOutput();
+            try {
+                super.flushBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                lockOutput();
+                try {
+                    outputStream = new GuardedOutputStream(super.getOutputStream());
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return outputStream;
+        }
+    }
+
+    private final class GuardedOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        GuardedOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            lockOutput();
+            try {
+                out.write(b);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            lockOutput();
+            try {
+                out.write(b, off, len);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            lockOutput();
+            try {
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lockOutput();
+            try {
+                out.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
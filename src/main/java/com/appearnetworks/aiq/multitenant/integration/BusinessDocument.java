@@ -109,8 +109,19 @@ public class BusinessDocument {
 
     private static final Pattern ID_REGEX = Pattern.compile("[a-zA-Z0-9.~_-]+");
 
-    private static void validateId(String id, String name) {
-        if (!ID_REGEX.matcher(id).matches() || id.length() > 250)
+    /**
+     * @return whether the string may be used as a document id or type, or an attachment name
+     */
+    public static boolean isValidId(String id) {
+        return id.length() <= 250 && ID_REGEX.matcher(id).matches();
+    }
+
+    /**
+     * @param name  what the id is, for the message
+     * @throws IllegalArgumentException if the id is not valid
+     */
+    public static void validateId(String id, String name) {
+        if (!isValidId(id))
             throw new IllegalArgumentException("Invalid " + name + ": " + id);
     }
 }
@@ -0,0 +1,36 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+import java.util.Collection;
+
+/**
+ * Documents changed in a solution since a given change token.
+ */
+public final class DocumentChanges {
+    /**
+     * Inserted or updated documents, or all documents if {@link #full}.
+     */
+    public final Iterable<DocumentReference> changed;
+
+    /**
+     * Deleted documents, with the revision they were deleted at. Always empty if {@link #full}.
+     */
+    public final Collection<DocumentReference> deleted;
+
+    /**
+     * Token to get the changes after these ones.
+     */
+    public final String token;
+
+    /**
+     * {@code true} if the given token could not be used, and {@link #changed} holds all documents instead; any
+     * document not in it has been deleted.
+     */
+    public final boolean full;
+
+    public DocumentChanges(Iterable<DocumentReference> changed, Collection<DocumentReference> deleted, String token, boolean full) {
+        this.changed = changed;
+        this.deleted = deleted;
+        this.token = token;
+        this.full = full;
+    }
+}
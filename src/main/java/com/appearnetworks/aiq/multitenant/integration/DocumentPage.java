@@ -0,0 +1,20 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+import java.util.List;
+
+/**
+ * One page of the documents in a solution.
+ */
+public final class DocumentPage {
+    public final List<DocumentReference> documentReferences;
+
+    /**
+     * Cursor to get the next page, or {@code null} if this is the last one.
+     */
+    public final String cursor;
+
+    public DocumentPage(List<DocumentReference> documentReferences, String cursor) {
+        this.documentReferences = documentReferences;
+        this.cursor = cursor;
+    }
+}
@@ -0,0 +1,23 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * One write in a batch: an insert if the revision is {@code 0}, an update if there is a body, and a delete otherwise.
+ */
+public final class DocumentWrite {
+    /**
+     * Document to write, with its current revision, or {@code 0} to insert it.
+     */
+    public final DocumentReference docRef;
+
+    /**
+     * New body, or {@code null} to delete the document.
+     */
+    public final ObjectNode body;
+
+    public DocumentWrite(DocumentReference docRef, ObjectNode body) {
+        this.docRef = docRef;
+        this.body = body;
+    }
+}
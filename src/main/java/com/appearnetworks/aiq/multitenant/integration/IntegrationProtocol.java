@@ -1,15 +1,22 @@
 package com.appearnetworks.aiq.multitenant.integration;
 
 import com.appearnetworks.aiq.multitenant.ProtocolConstants;
+import com.appearnetworks.aiq.multitenant.logging.AsyncHandler;
+import com.appearnetworks.aiq.multitenant.persistence.AttachmentStore;
 import com.appearnetworks.aiq.multitenant.persistence.PersistenceService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -17,18 +24,32 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 /**
  * Implement the AIQ 8 integration protocol.
+ *
+ * Requests which access documents or attachments are run on the persistence executor, so that a container thread is
+ * not held while they wait for the disk. Requests beyond what the executor can queue are answered with
+ * {@link HttpStatus#SERVICE_UNAVAILABLE}.
  */
 @Controller
 @RequestMapping(value = "/aiq/integration/{orgId}/{solutionId}")
@@ -42,10 +63,35 @@ public class IntegrationProtocol {
     private static final String DOC_TYPE = "docType";
     private static final String DOC_ID = "docId";
     private static final String NAME = "name";
+    private static final String SINCE = "since";
+    private static final String CURSOR = "cursor";
+    private static final String LIMIT = "limit";
+
+    private static final int BATCH_LIMIT = 1000;
+
+    private static final String BYTES = "bytes";
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+)");
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final String JSON_UTF8 = MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8";
 
     @Autowired
     private PersistenceService persistenceService;
 
+    @Autowired
+    private AttachmentStore attachmentStore;
+
+    @Autowired
+    private Executor persistenceExecutor;
+
+    @Autowired
+    private Executor completionExecutor;
+
+    @Value("${aiq.persistence.requesttimeout:30000}")
+    private long requestTimeout;
+
     private ObjectMapper mapper = new ObjectMapper();
 
     @PostConstruct
@@ -53,180 +99,475 @@ public class IntegrationProtocol {
         InputStream loggingConfiguration = getClass().getResourceAsStream("/logging.properties");
         LogManager.getLogManager().readConfiguration(loggingConfiguration);
         loggingConfiguration.close();
+        AsyncHandler.install();
     }
 
     @RequestMapping(value = "/datasync",
                     method = RequestMethod.GET,
                     produces = MediaType.APPLICATION_JSON_VALUE)
-    public
     @ResponseBody
-    ListDocumentsResponse listDocuments(@PathVariable(ORG_ID) String orgId,
-                                        @PathVariable(SOLUTION_ID) String solutionId,
-                                        @RequestParam(value = USER_ID, required = false) String userId) {
-        LOGGER.fine("Listing documents in organization " + orgId);
-        return new ListDocumentsResponse(persistenceService.list(orgId, solutionId));
+    public DeferredResult<Void> listDocuments(@PathVariable(ORG_ID) String orgId,
+                                              @PathVariable(SOLUTION_ID) String solutionId,
+                                              @RequestParam(value = USER_ID, required = false) String userId,
+                                              @RequestParam(value = DOC_TYPE, required = false) String docType,
+                                              @RequestParam(value = SINCE, required = false) String since,
+                                              @RequestParam(value = CURSOR, required = false) String cursor,
+                                              @RequestParam(value = LIMIT, required = false) Integer limit,
+                                              @RequestHeader(value = ProtocolConstants.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                              HttpServletResponse response) throws IOException {
+        LOGGER.log(Level.FINE, "Listing documents in organization {0}", orgId);
+        if ((limit == null && cursor != null) || (limit != null && (limit <= 0 || since != null))) {
+            response.sendError(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+
+        return async(response, guarded -> {
+            // Taken before listing, so that a write made while listing at worst makes the next poll list again.
+            String etag = '\"' + persistenceService.version(orgId, solutionId) + '\"';
+            guarded.setHeader(ProtocolConstants.ETAG, etag);
+            if (matches(ifNoneMatch, etag)) {
+                guarded.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return null;
+            }
+
+            DocumentPage page = null;
+            if (limit != null) {
+                try {
+                    page = persistenceService.list(orgId, solutionId, docType, cursor, limit);
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Unknown cursor " + cursor + " in organization " + orgId);
+                    guarded.sendError(HttpStatus.BAD_REQUEST.value());
+                    return null;
+                }
+            }
+
+            guarded.setContentType(JSON_UTF8);
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(guarded.getOutputStream())) {
+                generator.writeStartObject();
+                if (page != null) {
+                    writeDocumentReferences(generator, "documentReferences", page.documentReferences);
+                    if (page.cursor != null) {
+                        generator.writeStringField("cursor", page.cursor);
+                    }
+                } else if (since == null) {
+                    writeDocumentReferences(generator, "documentReferences", (docType != null)
+                            ? persistenceService.list(orgId, solutionId, docType)
+                            : persistenceService.list(orgId, solutionId));
+                } else {
+                    // changes are few, so they are filtered here rather than indexed by type
+                    DocumentChanges changes = persistenceService.changes(orgId, solutionId, since);
+                    writeDocumentReferences(generator, "documentReferences", changes.changed, docType);
+                    writeDocumentReferences(generator, "deletedReferences", changes.deleted, docType);
+                    generator.writeStringField("token", changes.token);
+                    generator.writeBooleanField("full", changes.full);
+                }
+                generator.writeEndObject();
+            }
+            return null;
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId:.*}",
                     method = RequestMethod.GET,
                     produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<ObjectNode> getDocument(@PathVariable(ORG_ID) String orgId,
-                                                  @PathVariable(SOLUTION_ID) String solutionId,
-                                                  @PathVariable(DOC_TYPE) String docType,
-                                                  @PathVariable(DOC_ID) String docId) {
-        LOGGER.fine("Getting document " + docId + " in organization " + orgId);
-        Object document = persistenceService.retrieve(orgId, solutionId, docId);
-        if (document == null) {
-            LOGGER.warning("Document " + docId + " not found in organization " + orgId);
-            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
-        } else {
-            ObjectNode json;
-            json = (ObjectNode)document;
-
-            long revision = json.get("_rev").asLong();
-            HttpHeaders responseHeaders = new HttpHeaders();
-            responseHeaders.setETag(makeETag(revision));
-            return new ResponseEntity<>(json, responseHeaders, HttpStatus.OK);
+    public DeferredResult<ResponseEntity<byte[]>> getDocument(@PathVariable(ORG_ID) String orgId,
+                                                              @PathVariable(SOLUTION_ID) String solutionId,
+                                                              @PathVariable(DOC_TYPE) String docType,
+                                                              @PathVariable(DOC_ID) String docId,
+                                                              @RequestHeader(value = ProtocolConstants.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Getting document {0} in organization {1}", new Object[] {docId, orgId});
+        }
+        return async(() -> {
+            if (ifNoneMatch != null) {
+                long revision = persistenceService.revision(orgId, solutionId, docType, docId);
+                if (revision != 0 && matches(ifNoneMatch, makeETag(revision))) {
+                    HttpHeaders responseHeaders = new HttpHeaders();
+                    responseHeaders.setETag(makeETag(revision));
+                    return new ResponseEntity<>(responseHeaders, HttpStatus.NOT_MODIFIED);
+                }
+            }
+            // sent as stored, without parsing or serializing it again
+            SerializedDocument document = persistenceService.retrieveSerialized(orgId, solutionId, docType, docId);
+            if (document == null) {
+                LOGGER.warning("Document " + docId + " of type " + docType + " not found in organization " + orgId);
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            } else {
+                HttpHeaders responseHeaders = new HttpHeaders();
+                responseHeaders.setETag(makeETag(document.revision));
+                responseHeaders.set(ProtocolConstants.CONTENT_TYPE, JSON_UTF8);
+                return new ResponseEntity<>(document.json, responseHeaders, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Get many documents at once:
+     * <pre>
+     * {"documentReferences":[{"_type":"t","_id":"a"},{"_type":"t","_id":"b"}]}
+     * </pre>
+     * The documents are streamed in the same order, each with its body as stored; a missing one, or one of another
+     * type, is marked instead:
+     * <pre>
+     * {"documents":[{"_type":"t","_id":"a","_rev":3,"body":{...}},{"_type":"t","_id":"b","missing":true}]}
+     * </pre>
+     */
+    @RequestMapping(value = "/datasync/_get",
+                    method = RequestMethod.POST,
+                    consumes = MediaType.APPLICATION_JSON_VALUE,
+                    produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public DeferredResult<Void> getDocuments(@PathVariable(ORG_ID) String orgId,
+                                             @PathVariable(SOLUTION_ID) String solutionId,
+                                             @RequestBody ObjectNode request,
+                                             HttpServletResponse response) throws IOException {
+        JsonNode references = request.path("documentReferences");
+        if (!references.isArray()) {
+            response.sendError(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        if (references.size() > BATCH_LIMIT) {
+            response.sendError(HttpStatus.REQUEST_ENTITY_TOO_LARGE.value());
+            return null;
         }
+        for (JsonNode reference : references) {
+            if (!reference.path("_id").isTextual() || !reference.path("_type").isTextual()) {
+                response.sendError(HttpStatus.BAD_REQUEST.value());
+                return null;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Getting {0} documents in organization {1}", new Object[] {references.size(), orgId});
+        }
+
+        return async(response, guarded -> {
+            guarded.setContentType(JSON_UTF8);
+            OutputStream out = guarded.getOutputStream();
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("documents");
+                for (JsonNode reference : references) {
+                    String docType = reference.get("_type").asText();
+                    String docId = reference.get("_id").asText();
+                    SerializedDocument document = persistenceService.retrieveSerialized(orgId, solutionId, docType, docId);
+                    generator.writeStartObject();
+                    generator.writeStringField("_type", docType);
+                    generator.writeStringField("_id", docId);
+                    if (document == null) {
+                        generator.writeBooleanField("missing", true);
+                    } else {
+                        generator.writeNumberField("_rev", document.revision);
+                        generator.writeFieldName("body");
+                        // an empty raw value makes the generator write the separator, and the body is then copied as stored
+                        generator.writeRawValue("");
+                        generator.flush();
+                        out.write(document.json);
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            return null;
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId}/{name:.*}", method = RequestMethod.GET)
-    public void getAttachment(@PathVariable(ORG_ID) String orgId,
-                              @PathVariable(SOLUTION_ID) String solutionId,
-                              @PathVariable(DOC_TYPE) String docType,
-                              @PathVariable(DOC_ID) String docId,
-                              @PathVariable(NAME) String name,
-                              HttpServletResponse response) throws IOException {
-        response.sendError(HttpStatus.NOT_FOUND.value());
+    @ResponseBody
+    public DeferredResult<Void> getAttachment(@PathVariable(ORG_ID) String orgId,
+                                              @PathVariable(SOLUTION_ID) String solutionId,
+                                              @PathVariable(DOC_TYPE) String docType,
+                                              @PathVariable(DOC_ID) String docId,
+                                              @PathVariable(NAME) String name,
+                                              @RequestHeader(value = ProtocolConstants.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                              @RequestHeader(value = ProtocolConstants.RANGE, required = false) String range,
+                                              @RequestHeader(value = ProtocolConstants.IF_RANGE, required = false) String ifRange,
+                                              HttpServletResponse response) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Getting attachment {0} of document {1} in organization {2}", new Object[] {name, docId, orgId});
+        }
+        return async(response, guarded -> {
+            try (AttachmentStore.Attachment attachment = attachmentStore.open(orgId, solutionId, docId, name)) {
+                if (attachment == null) {
+                    LOGGER.warning("Attachment " + name + " of document " + docId + " not found in organization " + orgId);
+                    guarded.sendError(HttpStatus.NOT_FOUND.value());
+                    return null;
+                }
+                String etag = makeETag(attachment.revision);
+                guarded.setHeader(ProtocolConstants.ETAG, etag);
+                if (matches(ifNoneMatch, etag)) {
+                    guarded.setStatus(HttpStatus.NOT_MODIFIED.value());
+                    return null;
+                }
+                guarded.setHeader(ProtocolConstants.ACCEPT_RANGES, BYTES);
+
+                long first = 0;
+                long count = attachment.size;
+                // a range of another revision is of no use, so all of it is sent instead
+                if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    long[] bounds = parseRange(range, attachment.size);
+                    if (bounds != null && bounds.length == 0) {
+                        guarded.setHeader(ProtocolConstants.CONTENT_RANGE, BYTES + " */" + attachment.size);
+                        guarded.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                        return null;
+                    } else if (bounds != null) {
+                        first = bounds[0];
+                        count = bounds[1] - bounds[0] + 1;
+                        guarded.setHeader(ProtocolConstants.CONTENT_RANGE, BYTES + ' ' + bounds[0] + '-' + bounds[1] + '/' + attachment.size);
+                        guarded.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                    }
+                }
+                guarded.setContentType(attachment.contentType);
+                guarded.setHeader(ProtocolConstants.CONTENT_LENGTH, Long.toString(count));
+                attachment.transferTo(guarded.getOutputStream(), first, count);
+            }
+            return null;
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId:.*}",
                     method = RequestMethod.PUT,
                     consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> insertDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                            @PathVariable(ORG_ID) String orgId,
-                                            @PathVariable(SOLUTION_ID) String solutionId,
-                                            @PathVariable(DOC_TYPE) String docType,
-                                            @PathVariable(DOC_ID) String docId,
-                                            @RequestBody ObjectNode doc) {
-        LOGGER.info("Inserting document " + docId + " in organization " + orgId);
-        try {
-            HttpHeaders responseHeaders = new HttpHeaders();
-            long revision = persistenceService.insert(
-                    orgId,
-                    solutionId,
-                    new DocumentReference(docId, docType, 0),
-                    doc);
-            responseHeaders.setETag(makeETag(revision));
-            return new ResponseEntity<>(responseHeaders, HttpStatus.CREATED);
+    public DeferredResult<ResponseEntity<?>> insertDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                            @PathVariable(ORG_ID) String orgId,
+                                                            @PathVariable(SOLUTION_ID) String solutionId,
+                                                            @PathVariable(DOC_TYPE) String docType,
+                                                            @PathVariable(DOC_ID) String docId,
+                                                            @RequestBody ObjectNode doc) {
+        LOGGER.log(Level.INFO, "Inserting document {0} in organization {1}", new Object[] {docId, orgId});
+        return async(() -> {
+            try {
+                attachmentStore.keepAttachments(orgId, solutionId, docId, doc);
+                HttpHeaders responseHeaders = new HttpHeaders();
+                long revision = persistenceService.insert(
+                        orgId,
+                        solutionId,
+                        new DocumentReference(docId, docType, 0),
+                        doc);
+                responseHeaders.setETag(makeETag(revision));
+                return new ResponseEntity<>(responseHeaders, HttpStatus.CREATED);
 
-        } catch (UpdateException e) {
-            LOGGER.log(Level.WARNING, "Could not insert document " + docId + " in organization " + orgId, e);
-            return new ResponseEntity<>(e.getStatusCode());
-        }
+            } catch (UpdateException e) {
+                LOGGER.log(Level.WARNING, "Could not insert document " + docId + " in organization " + orgId, e);
+                return new ResponseEntity<>(e.getStatusCode());
+            }
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId:.*}",
                     method = RequestMethod.PUT,
                     headers = {ProtocolConstants.IF_MATCH},
                     consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> updateDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                            @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
-                                            @PathVariable(ORG_ID) String orgId,
-                                            @PathVariable(SOLUTION_ID) String solutionId,
-                                            @PathVariable(DOC_TYPE) String docType,
-                                            @PathVariable(DOC_ID) String docId,
-                                            @RequestBody ObjectNode doc) {
-        LOGGER.info("Updating document " + docId + " in organization " + orgId);
-        try {
-            long currentRevision = parseRevision(ifMatch);
-            HttpHeaders responseHeaders = new HttpHeaders();
-            long revision = persistenceService.update(
-                    orgId,
-                    solutionId,
-                    new DocumentReference(docId, docType, currentRevision),
-                    doc);
-            responseHeaders.setETag(makeETag(revision));
-            return new ResponseEntity<>(responseHeaders, HttpStatus.NO_CONTENT);
-        } catch (UpdateException e) {
-            LOGGER.log(Level.WARNING, "Could not update document " + docId + " in organization " + orgId, e);
-            return new ResponseEntity<>(e.getStatusCode());
-        }
+    public DeferredResult<ResponseEntity<?>> updateDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                            @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
+                                                            @PathVariable(ORG_ID) String orgId,
+                                                            @PathVariable(SOLUTION_ID) String solutionId,
+                                                            @PathVariable(DOC_TYPE) String docType,
+                                                            @PathVariable(DOC_ID) String docId,
+                                                            @RequestBody ObjectNode doc) {
+        LOGGER.log(Level.INFO, "Updating document {0} in organization {1}", new Object[] {docId, orgId});
+        return async(() -> {
+            try {
+                attachmentStore.keepAttachments(orgId, solutionId, docId, doc);
+                long currentRevision = parseRevision(ifMatch);
+                HttpHeaders responseHeaders = new HttpHeaders();
+                long revision = persistenceService.update(
+                        orgId,
+                        solutionId,
+                        new DocumentReference(docId, docType, currentRevision),
+                        doc);
+                responseHeaders.setETag(makeETag(revision));
+                return new ResponseEntity<>(responseHeaders, HttpStatus.NO_CONTENT);
+            } catch (UpdateException e) {
+                LOGGER.log(Level.WARNING, "Could not update document " + docId + " in organization " + orgId, e);
+                return new ResponseEntity<>(e.getStatusCode());
+            }
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId:.*}",
                     method = RequestMethod.DELETE,
                     headers = {ProtocolConstants.IF_MATCH})
-    public ResponseEntity<?> deleteDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                            @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
-                                            @PathVariable(ORG_ID) String orgId,
-                                            @PathVariable(SOLUTION_ID) String solutionId,
-                                            @PathVariable(DOC_TYPE) String docType,
-                                            @PathVariable(DOC_ID) String docId) {
-        LOGGER.info("Deleting document " + docId + " in organization " + orgId);
-        try {
-            long currentRevision = parseRevision(ifMatch);
-            persistenceService.delete(
-                    orgId,
-                    solutionId,
-                    new DocumentReference(docId, docType, currentRevision));
-            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
-        } catch (UpdateException e) {
-            LOGGER.log(Level.WARNING, "Could not delete document " + docId + " in organization " + orgId, e);
-            return new ResponseEntity<>(e.getStatusCode());
+    public DeferredResult<ResponseEntity<?>> deleteDocument(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                            @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                            @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
+                                                            @PathVariable(ORG_ID) String orgId,
+                                                            @PathVariable(SOLUTION_ID) String solutionId,
+                                                            @PathVariable(DOC_TYPE) String docType,
+                                                            @PathVariable(DOC_ID) String docId) {
+        LOGGER.log(Level.INFO, "Deleting document {0} in organization {1}", new Object[] {docId, orgId});
+        return async(() -> {
+            try {
+                long currentRevision = parseRevision(ifMatch);
+                persistenceService.delete(
+                        orgId,
+                        solutionId,
+                        new DocumentReference(docId, docType, currentRevision));
+                pruneAttachments(orgId, solutionId, docId);
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            } catch (UpdateException e) {
+                LOGGER.log(Level.WARNING, "Could not delete document " + docId + " in organization " + orgId, e);
+                return new ResponseEntity<>(e.getStatusCode());
+            }
+        });
+    }
+
+    /**
+     * Apply a batch of document writes, as sent by a device that was offline:
+     * <pre>
+     * {"documents":[{"_type":"t","_id":"a","body":{...}},                   insert
+     *               {"_type":"t","_id":"b","_rev":3,"body":{...}},          update
+     *               {"_type":"t","_id":"c","_rev":5,"_deleted":true}]}      delete
+     * </pre>
+     * Each write is made as if it was sent on its own, and its status and ETag are what that request would have been
+     * answered with:
+     * <pre>
+     * {"results":[{"_type":"t","_id":"a","status":201,"etag":"\"1\""}, ...]}
+     * </pre>
+     */
+    @RequestMapping(value = "/datasync",
+                    method = RequestMethod.POST,
+                    consumes = MediaType.APPLICATION_JSON_VALUE,
+                    produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public DeferredResult<Void> writeDocuments(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                               @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                               @PathVariable(ORG_ID) String orgId,
+                                               @PathVariable(SOLUTION_ID) String solutionId,
+                                               @RequestBody ObjectNode batch,
+                                               HttpServletResponse response) throws IOException {
+        JsonNode documents = batch.path("documents");
+        if (!documents.isArray()) {
+            response.sendError(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        if (documents.size() > BATCH_LIMIT) {
+            response.sendError(HttpStatus.REQUEST_ENTITY_TOO_LARGE.value());
+            return null;
+        }
+        LOGGER.log(Level.INFO, "Writing {0} documents in organization {1}", new Object[] {documents.size(), orgId});
+
+        List<DocumentWrite> writes = new ArrayList<>(documents.size());
+        for (JsonNode document : documents) {
+            JsonNode docId = document.path("_id");
+            JsonNode docType = document.path("_type");
+            long revision = document.path("_rev").asLong(0);
+            boolean deleted = document.path("_deleted").asBoolean(false);
+            JsonNode body = document.path("body");
+            if (!docId.isTextual() || !docType.isTextual() || !BusinessDocument.isValidId(docId.asText()) || !BusinessDocument.isValidId(docType.asText()) ||
+                revision < 0 || (deleted ? revision == 0 : !body.isObject())) {
+                LOGGER.warning("Invalid write " + document + " in organization " + orgId);
+                response.sendError(HttpStatus.BAD_REQUEST.value());
+                return null;
+            }
+            DocumentReference docRef = new DocumentReference(docId.asText(), docType.asText(), revision);
+            writes.add(new DocumentWrite(docRef, deleted ? null : (ObjectNode) body));
         }
+
+        return async(response, guarded -> {
+            for (DocumentWrite write : writes) {
+                if (write.body != null) {
+                    attachmentStore.keepAttachments(orgId, solutionId, write.docRef._id, write.body);
+                }
+            }
+            List<WriteResult> results = persistenceService.write(orgId, solutionId, writes);
+
+            guarded.setContentType(JSON_UTF8);
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(guarded.getOutputStream())) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("results");
+                for (int i = 0; i < writes.size(); i++) {
+                    DocumentWrite write = writes.get(i);
+                    WriteResult result = results.get(i);
+                    if (result.status.is2xxSuccessful()) {
+                        if (write.body == null) {
+                            pruneAttachments(orgId, solutionId, write.docRef._id);
+                        }
+                    } else {
+                        LOGGER.warning("Could not write document " + write.docRef._id + " in organization " + orgId + ": " + result.status);
+                    }
+                    generator.writeStartObject();
+                    generator.writeStringField("_type", write.docRef._type);
+                    generator.writeStringField("_id", write.docRef._id);
+                    generator.writeNumberField("status", result.status.value());
+                    if (result.revision != 0) {
+                        generator.writeStringField("etag", makeETag(result.revision));
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            return null;
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId}/{name:.*}", method = RequestMethod.PUT)
-    public ResponseEntity<Object> insertAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                                   @RequestHeader(ProtocolConstants.CONTENT_TYPE) String contentType,
-                                                   @RequestHeader(value = ProtocolConstants.CONTENT_LENGTH,
-                                                                  required = false,
-                                                                  defaultValue = "-1") long contentLength,
-                                                   @PathVariable(ORG_ID) String orgId,
-                                                   @PathVariable(SOLUTION_ID) String solutionId,
-                                                   @PathVariable(DOC_TYPE) String docType,
-                                                   @PathVariable(DOC_ID) String docId,
-                                                   @PathVariable(NAME) String name,
-                                                   InputStream body) throws IOException {
-        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    public DeferredResult<ResponseEntity<Object>> insertAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                                   @RequestHeader(ProtocolConstants.CONTENT_TYPE) String contentType,
+                                                                   @RequestHeader(value = ProtocolConstants.CONTENT_LENGTH,
+                                                                                  required = false,
+                                                                                  defaultValue = "-1") long contentLength,
+                                                                   @PathVariable(ORG_ID) String orgId,
+                                                                   @PathVariable(SOLUTION_ID) String solutionId,
+                                                                   @PathVariable(DOC_TYPE) String docType,
+                                                                   @PathVariable(DOC_ID) String docId,
+                                                                   @RequestHeader(value = ProtocolConstants.CONTENT_RANGE, required = false) String contentRange,
+                                                                   @PathVariable(NAME) String name,
+                                                                   InputStream body) {
+        LOGGER.log(Level.INFO, "Inserting attachment {0} of document {1} in organization {2}", new Object[] {name, docId, orgId});
+        return async(() -> {
+            return putAttachment(orgId, solutionId, docType, docId, name, contentType, 0, contentLength, contentRange, body, HttpStatus.CREATED);
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId}/{name:.*}",
                     method = RequestMethod.PUT,
                     headers = {ProtocolConstants.IF_MATCH})
-    public ResponseEntity<Object> updateAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                                   @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
-                                                   @RequestHeader(ProtocolConstants.CONTENT_TYPE) String contentType,
-                                                   @RequestHeader(value = ProtocolConstants.CONTENT_LENGTH,
-                                                                  required = false,
-                                                                  defaultValue = "-1") long contentLength,
-                                                   @PathVariable(ORG_ID) String orgId,
-                                                   @PathVariable(SOLUTION_ID) String solutionId,
-                                                   @PathVariable(DOC_TYPE) String docType,
-                                                   @PathVariable(DOC_ID) String docId,
-                                                   @PathVariable(NAME) String name,
-                                                   InputStream body) throws IOException {
-        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    public DeferredResult<ResponseEntity<Object>> updateAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                                   @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
+                                                                   @RequestHeader(ProtocolConstants.CONTENT_TYPE) String contentType,
+                                                                   @RequestHeader(value = ProtocolConstants.CONTENT_LENGTH,
+                                                                                  required = false,
+                                                                                  defaultValue = "-1") long contentLength,
+                                                                   @PathVariable(ORG_ID) String orgId,
+                                                                   @PathVariable(SOLUTION_ID) String solutionId,
+                                                                   @PathVariable(DOC_TYPE) String docType,
+                                                                   @PathVariable(DOC_ID) String docId,
+                                                                   @RequestHeader(value = ProtocolConstants.CONTENT_RANGE, required = false) String contentRange,
+                                                                   @PathVariable(NAME) String name,
+                                                                   InputStream body) {
+        LOGGER.log(Level.INFO, "Updating attachment {0} of document {1} in organization {2}", new Object[] {name, docId, orgId});
+        return async(() -> {
+            return putAttachment(orgId, solutionId, docType, docId, name, contentType, parseRevision(ifMatch), contentLength, contentRange, body, HttpStatus.NO_CONTENT);
+        });
     }
 
     @RequestMapping(value = "/datasync/{docType}/{docId}/{name:.*}",
                     method = RequestMethod.DELETE,
                     headers = {ProtocolConstants.IF_MATCH})
-    public ResponseEntity<Object> deleteAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
-                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
-                                                   @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
-                                                   @PathVariable(ORG_ID) String orgId,
-                                                   @PathVariable(SOLUTION_ID) String solutionId,
-                                                   @PathVariable(DOC_TYPE) String docType,
-                                                   @PathVariable(DOC_ID) String docId,
-                                                   @PathVariable(NAME) String name) {
-        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    public DeferredResult<ResponseEntity<Object>> deleteAttachment(@RequestHeader(ProtocolConstants.X_AIQ_USER_ID) String userId,
+                                                                   @RequestHeader(ProtocolConstants.X_AIQ_DEVICE_ID) String deviceId,
+                                                                   @RequestHeader(ProtocolConstants.IF_MATCH) String ifMatch,
+                                                                   @PathVariable(ORG_ID) String orgId,
+                                                                   @PathVariable(SOLUTION_ID) String solutionId,
+                                                                   @PathVariable(DOC_TYPE) String docType,
+                                                                   @PathVariable(DOC_ID) String docId,
+                                                                   @PathVariable(NAME) String name) {
+        LOGGER.log(Level.INFO, "Deleting attachment {0} of document {1} in organization {2}", new Object[] {name, docId, orgId});
+        return async(() -> {
+            try {
+                attachmentStore.delete(orgId, solutionId, docType, docId, name, parseRevision(ifMatch));
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            } catch (UpdateException e) {
+                LOGGER.log(Level.WARNING, "Could not delete attachment " + name + " of document " + docId + " in organization " + orgId, e);
+                return new ResponseEntity<>(e.getStatusCode());
+            }
+        });
     }
 
     @RequestMapping(value = "/logout", method = RequestMethod.POST)
@@ -279,6 +620,197 @@ public class IntegrationProtocol {
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
+    /**
+     * A request which could not be queued, or timed out before it was run, is most likely waiting for a busy persistence
+     * executor, so the client is asked to retry.
+     */
+    @ExceptionHandler({RejectedExecutionException.class, TimeoutException.class})
+    public ResponseEntity<Object> rejected(Exception e) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.set(ProtocolConstants.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        return new ResponseEntity<>(responseHeaders, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * A request which timed out while running may still complete, so the client is not asked to retry it, which could
+     * fail or write again once it has.
+     */
+    @ExceptionHandler(AsyncRequest.StillRunningException.class)
+    public ResponseEntity<Object> stillRunning(Exception e) {
+        return new ResponseEntity<>(HttpStatus.GATEWAY_TIMEOUT);
+    }
+
+    private <T> DeferredResult<T> async(Callable<T> task) {
+        return async(null, response -> task.call());
+    }
+
+    /**
+     * Run a request on the persistence executor, within the request timeout, see {@link AsyncRequest}. Its result is
+     * set on the completion executor, see {@code PersistenceConfig#completionExecutor}.
+     *
+     * @param response  the response, which the task must only write through the one it is given
+     */
+    private <T> DeferredResult<T> async(HttpServletResponse response, AsyncRequest.Task<T> task) {
+        AsyncRequest<T> request = new AsyncRequest<>(requestTimeout, response);
+        try {
+            persistenceExecutor.execute(() -> request.run(task, completionExecutor));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warning("Too many pending requests, rejecting request");
+            request.reject(e);
+        }
+        return request.result();
+    }
+
+    /**
+     * Store an attachment sent in a single request, or one chunk of it if there is a Content-Range header. The reply
+     * to a chunk which does not complete the attachment is {@link HttpStatus#RESUME_INCOMPLETE}, with a Range header
+     * telling how much has been received; a chunk of {@code bytes *}{@code /total} only asks for that.
+     */
+    private ResponseEntity<Object> putAttachment(String orgId, String solutionId, String docType, String docId, String name,
+                                                 String contentType, long currentRevision, long contentLength, String contentRange,
+                                                 InputStream body, HttpStatus status) throws IOException {
+        long total = -1;
+        try {
+            long revision;
+            if (contentRange == null) {
+                revision = attachmentStore.put(orgId, solutionId, docType, docId, name, MediaType.parseMediaType(contentType),
+                                               currentRevision, contentLength, body);
+            } else {
+                Matcher range = CONTENT_RANGE.matcher(contentRange.trim());
+                if (!range.matches()) {
+                    LOGGER.warning("Invalid content range " + contentRange + " of attachment " + name + " in organization " + orgId);
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+                total = Long.parseLong(range.group(3));
+                AttachmentStore.Upload upload;
+                if (range.group(1) == null) {
+                    upload = attachmentStore.uploaded(orgId, solutionId, docId, name, currentRevision, total);
+                } else {
+                    long first = Long.parseLong(range.group(1));
+                    long count = Long.parseLong(range.group(2)) - first + 1;
+                    upload = attachmentStore.putChunk(orgId, solutionId, docType, docId, name, MediaType.parseMediaType(contentType),
+                                                      currentRevision, first, count, total, body);
+                }
+                if (upload.revision == 0) {
+                    return new ResponseEntity<>(received(upload), HttpStatus.RESUME_INCOMPLETE);
+                }
+                revision = upload.revision;
+            }
+            HttpHeaders responseHeaders = new HttpHeaders();
+            responseHeaders.setETag(makeETag(revision));
+            return new ResponseEntity<>(responseHeaders, status);
+        } catch (InvalidMediaTypeException | NumberFormatException e) {
+            LOGGER.warning("Invalid content type " + contentType + " or range " + contentRange + " of attachment " + name + " in organization " + orgId);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (UpdateException e) {
+            LOGGER.log(Level.WARNING, "Could not store attachment " + name + " of document " + docId + " in organization " + orgId, e);
+            if (e.getStatusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE && total >= 0) {
+                return new ResponseEntity<>(received(attachmentStore.uploaded(orgId, solutionId, docId, name, currentRevision, total)), e.getStatusCode());
+            }
+            return new ResponseEntity<>(e.getStatusCode());
+        }
+    }
+
+    /**
+     * @return Range header telling how much of a chunked upload has been received
+     */
+    private static HttpHeaders received(AttachmentStore.Upload upload) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        if (upload.received > 0) {
+            responseHeaders.set(ProtocolConstants.RANGE, BYTES + "=0-" + (upload.received - 1));
+        }
+        return responseHeaders;
+    }
+
+    private void pruneAttachments(String orgId, String solutionId, String docId) {
+        try {
+            attachmentStore.prune(orgId, solutionId, docId);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete attachments of document " + docId + " in organization " + orgId, e);
+        }
+    }
+
+    /**
+     * Write an array field of document references while iterating them, without collecting them first.
+     */
+    private void writeDocumentReferences(JsonGenerator generator, String fieldName, Iterable<DocumentReference> references) throws IOException {
+        writeDocumentReferences(generator, fieldName, references, null);
+    }
+
+    /**
+     * @param docType  only write references to documents of this type, or all if {@code null}
+     */
+    private void writeDocumentReferences(JsonGenerator generator, String fieldName, Iterable<DocumentReference> references,
+                                         String docType) throws IOException {
+        generator.writeArrayFieldStart(fieldName);
+        for (DocumentReference reference : references) {
+            if (docType != null && !docType.equals(reference._type)) {
+                continue;
+            }
+            generator.writeStartObject();
+            generator.writeStringField("_id", reference._id);
+            generator.writeStringField("_type", reference._type);
+            generator.writeNumberField("_rev", reference._rev);
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * @return {@code true} if an If-None-Match header lists the entity tag, compared weakly
+     */
+    private boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a Range header with a single byte range; other ranges are ignored, and all content is sent.
+     *
+     * @return first and last byte of the range, an empty array if it is not satisfiable, or {@code null} if it is
+     *         to be ignored
+     */
+    private static long[] parseRange(String range, long size) {
+        Matcher matcher = BYTE_RANGE.matcher(range.trim());
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            return null;
+        }
+        try {
+            long first;
+            long last = size - 1;
+            if (matcher.group(1).isEmpty()) {
+                // the last bytes
+                first = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                if (matcher.group(2).equals("0")) {
+                    return new long[0];
+                }
+            } else {
+                first = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    long requestedLast = Long.parseLong(matcher.group(2));
+                    if (requestedLast < first) {
+                        return null;
+                    }
+                    last = Math.min(requestedLast, last);
+                }
+            }
+            return (first < size) ? new long[] {first, last} : new long[0];
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     private String makeETag(long rev) {
         return '\"' + String.valueOf(rev) + '\"';
     }
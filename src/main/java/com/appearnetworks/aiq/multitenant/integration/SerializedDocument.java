@@ -0,0 +1,16 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+/**
+ * A revision of a document body, serialized as UTF-8 JSON, which includes the {@code _rev} field.
+ *
+ * The bytes are shared by all readers of the revision, and must not be modified.
+ */
+public final class SerializedDocument {
+    public final long revision;
+    public final byte[] json;
+
+    public SerializedDocument(long revision, byte[] json) {
+        this.revision = revision;
+        this.json = json;
+    }
+}
@@ -0,0 +1,20 @@
+package com.appearnetworks.aiq.multitenant.integration;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * Outcome of one write in a batch, with the status the corresponding single write would have been answered with.
+ */
+public final class WriteResult {
+    public final HttpStatus status;
+
+    /**
+     * New revision of the document, or {@code 0} if it was deleted or the write failed.
+     */
+    public final long revision;
+
+    public WriteResult(HttpStatus status, long revision) {
+        this.status = status;
+        this.revision = revision;
+    }
+}
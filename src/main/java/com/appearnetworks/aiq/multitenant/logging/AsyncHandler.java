@@ -0,0 +1,123 @@
+package com.appearnetworks.aiq.multitenant.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Hand log records to another handler on a background thread, so that logging threads never wait for output.
+ *
+ * Records wait in a bounded ring buffer. When it is full, further records are dropped and counted instead of blocking,
+ * and the number dropped is logged once there is room again. Messages are formatted by the background thread, so
+ * parameterized messages cost the logging thread no formatting at all. The source class and method of a record are not
+ * looked up, since that walks the stack of the logging thread, so formatters show the logger name instead.
+ */
+public class AsyncHandler extends Handler {
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final LogRecord END = new LogRecord(Level.OFF, "");
+
+    private final Handler target;
+    private final BlockingQueue<LogRecord> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private boolean closed;
+
+    public AsyncHandler(Handler target, int capacity) {
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        setLevel(target.getLevel());
+        writer = new Thread(this::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replace the handlers of the root logger with asynchronous ones, which wrap them. The size of the buffer is taken
+     * from the {@code capacity} property of this class in the logging configuration.
+     */
+    public static void install() {
+        int capacity = DEFAULT_CAPACITY;
+        String property = LogManager.getLogManager().getProperty(AsyncHandler.class.getName() + ".capacity");
+        if (property != null) {
+            capacity = Integer.parseInt(property.trim());
+        }
+
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (!(handler instanceof AsyncHandler)) {
+                root.removeHandler(handler);
+                root.addHandler(new AsyncHandler(handler, capacity));
+            }
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        long reported = 0;
+        try {
+            while (true) {
+                LogRecord record = buffer.take();
+                if (record == END) {
+                    return;
+                }
+                target.publish(record);
+
+                long dropped = this.dropped.get();
+                if (dropped != reported && buffer.isEmpty()) {
+                    LogRecord warning = new LogRecord(Level.WARNING, "Dropped {0} log records, logging is too slow");
+                    warning.setLoggerName(AsyncHandler.class.getName());
+                    warning.setParameters(new Object[] {dropped - reported});
+                    target.publish(warning);
+                    reported = dropped;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Write the records still in the buffer, then close the target handler.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            buffer.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.appearnetworks.aiq.multitenant.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count latencies in buckets, without locking, so that recording one costs two atomic increments.
+ *
+ * Buckets are microseconds on a log-linear scale: each power of two is split in four, so a percentile is at most 25%
+ * above the true value. Latencies of more than about 38 hours go into the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0))));
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * @return sum of all recorded latencies in nanoseconds
+     */
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Count the recorded latencies and compute percentiles of them, from the same snapshot of the buckets.
+     *
+     * @param quantiles  between 0 and 1
+     * @param values     receives the percentile for each quantile, in nanoseconds, or 0 if nothing is recorded
+     * @return number of recorded latencies
+     */
+    public long percentiles(double[] quantiles, long[] values) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+
+        for (int q = 0; q < quantiles.length; q++) {
+            values[q] = 0;
+            if (count == 0) {
+                continue;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    values[q] = TimeUnit.MICROSECONDS.toNanos(upperBound(i));
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return smallest latency in microseconds which goes into the bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return largest latency in microseconds which goes into the bucket
+     */
+    static long upperBound(int bucket) {
+        return (bucket < BUCKETS - 1) ? lowerBound(bucket + 1) - 1 : Long.MAX_VALUE / 1000;
+    }
+}
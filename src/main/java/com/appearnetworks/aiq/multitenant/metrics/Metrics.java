@@ -0,0 +1,160 @@
+package com.appearnetworks.aiq.multitenant.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and error counts of requests, persistence operations and calls to the server.
+ *
+ * Each timer is identified by a metric name and label values, and created when first used. They are written in the
+ * Prometheus text format, as summaries with percentiles.
+ *
+ * There are at most {@link #MAX_TIMERS} timers of each name, beyond which new label values are all recorded as
+ * {@link #OTHER}, so that label values taken from requests cannot grow the timers without bound.
+ */
+@Component
+public class Metrics {
+    public static final String REQUESTS = "aiq_request_seconds";
+    public static final String TENANT_REQUESTS = "aiq_tenant_request_seconds";
+    public static final String PERSISTENCE = "aiq_persistence_seconds";
+    public static final String SERVER = "aiq_server_seconds";
+
+    public static final int MAX_TIMERS = 1000;
+    public static final String OTHER = "other";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    public static class Timer {
+        private final String name;
+        private final String labels;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        Timer(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        /**
+         * @param start  value of {@link System#nanoTime()} when the operation started
+         */
+        public void record(long start, boolean error) {
+            histogram.record(System.nanoTime() - start);
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * @param labels  names and values of labels, alternating
+     */
+    public Timer timer(String name, String... labels) {
+        String labelString = labelString(labels);
+        Timer timer = timers.get(name + labelString);
+        if (timer != null) {
+            return timer;
+        }
+
+        AtomicInteger count = counts.computeIfAbsent(name, k -> new AtomicInteger());
+        if (count.get() >= MAX_TIMERS) {
+            String[] other = labels.clone();
+            for (int i = 1; i < other.length; i += 2) {
+                other[i] = OTHER;
+            }
+            String otherLabels = labelString(other);
+            return timers.computeIfAbsent(name + otherLabels, k -> new Timer(name, otherLabels));
+        }
+        return timers.computeIfAbsent(name + labelString, k -> {
+            count.incrementAndGet();
+            return new Timer(name, labelString);
+        });
+    }
+
+    private static String labelString(String... labels) {
+        StringBuilder key = new StringBuilder(64);
+        for (int i = 0; i < labels.length; i += 2) {
+            key.append((i == 0) ? '{' : ',').append(labels[i]).append("=\"");
+            escape(labels[i + 1], key);
+            key.append('"');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Write all timers in the Prometheus text format, a summary of latencies and a counter of errors for each name.
+     */
+    public void write(Writer out) throws IOException {
+        // sorted, so that the timers of each name are together
+        Collection<Timer> sorted = new TreeMap<>(timers).values();
+        long[] values = new long[QUANTILES.length];
+        String previousName = null;
+        for (Timer timer : sorted) {
+            if (!timer.name.equals(previousName)) {
+                out.write("# TYPE " + timer.name + " summary\n");
+                previousName = timer.name;
+            }
+            long count = timer.histogram.percentiles(QUANTILES, values);
+            String separator = timer.labels.isEmpty() ? "{" : timer.labels + ",";
+            for (int q = 0; q < QUANTILES.length; q++) {
+                out.write(timer.name + separator + "quantile=\"" + QUANTILES[q] + "\"} " + seconds(values[q]) + '\n');
+            }
+            out.write(timer.name + "_sum" + closed(timer.labels) + ' ' + seconds(timer.histogram.totalNanos()) + '\n');
+            out.write(timer.name + "_count" + closed(timer.labels) + ' ' + count + '\n');
+        }
+
+        previousName = null;
+        for (Timer timer : sorted) {
+            String name = errorsName(timer.name);
+            if (!name.equals(previousName)) {
+                out.write("# TYPE " + name + " counter\n");
+                previousName = name;
+            }
+            out.write(name + closed(timer.labels) + ' ' + timer.errors.sum() + '\n');
+        }
+    }
+
+    private static String errorsName(String name) {
+        return name.substring(0, name.length() - "_seconds".length()) + "_errors_total";
+    }
+
+    private static String closed(String labels) {
+        return labels.isEmpty() ? labels : labels + '}';
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.appearnetworks.aiq.multitenant.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Let the metrics be scraped, beside the integration protocol and behind the same authentication.
+ */
+@Controller
+public class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+    @Autowired
+    private Metrics metrics;
+
+    @RequestMapping(value = "/aiq/integration/metrics", method = RequestMethod.GET)
+    public void metrics(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        Writer out = response.getWriter();
+        metrics.write(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,555 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.AttachmentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Stores the attachments of documents as files, and keeps the references to them in the {@code _attachments} field of
+ * their documents, which only this store changes.
+ *
+ * Each revision of an attachment is the file {@code <organization>/<solution>/<document>/<name>/<revision>}. Uploads
+ * are streamed to a temporary file, which is moved in place once it is complete, so that readers never see a partial
+ * attachment. Every change of an attachment gives its document a new revision, so that it shows up in listings.
+ * A new revision of an attachment is numbered after the revision of its document, which keeps increasing when the
+ * attachment is deleted, so that a revision is never reused for other content.
+ *
+ * Large attachments can also be uploaded in chunks, which are spooled to a file identified by the attachment and the
+ * revision it replaces, so that an interrupted upload can be resumed where it stopped, even after a restart. The spool
+ * file is committed like a single upload once it is complete.
+ *
+ * Changes to the attachments of a document are serialized by a lock stripe. They are applied to the document with its
+ * revision as the expected value, and retried if a client changed the document in between.
+ */
+public class AttachmentStore {
+
+    private static final Logger LOGGER = Logger.getLogger(AttachmentStore.class.getName());
+
+    private static final String ATTACHMENTS = "_attachments";
+    private static final String REV = "_rev";
+    private static final String CONTENT_TYPE = "content_type";
+    private static final String UPLOADS = "uploads";
+    private static final String SPOOL_SUFFIX = ".part";
+    private static final long SPOOL_EXPIRY = TimeUnit.DAYS.toMillis(1);
+    private static final int LOCK_STRIPES = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Pattern NAME_REGEX = Pattern.compile("[a-zA-Z0-9.~_-]{1,250}");
+
+    /**
+     * A revision of an attachment opened for reading, which must be closed.
+     */
+    public static final class Attachment implements Closeable {
+        public final long revision;
+        public final String contentType;
+        public final long size;
+        private final FileChannel channel;
+
+        private Attachment(long revision, String contentType, FileChannel channel) throws IOException {
+            this.revision = revision;
+            this.contentType = contentType;
+            this.size = channel.size();
+            this.channel = channel;
+        }
+
+        /**
+         * Send the content with {@link FileChannel#transferTo}, which copies it directly from the file system cache
+         * when the stream is backed by a channel that supports it.
+         */
+        public void transferTo(OutputStream out) throws IOException {
+            transferTo(out, 0, size);
+        }
+
+        /**
+         * Send {@code count} bytes of the content, starting at {@code position}.
+         */
+        public void transferTo(OutputStream out, long position, long count) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long end = position + count;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, target);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Progress of a chunked upload.
+     */
+    public static final class Upload {
+        /**
+         * Number of bytes received so far, from the start of the attachment.
+         */
+        public final long received;
+
+        /**
+         * New revision of the attachment once the upload is complete, {@code 0} before.
+         */
+        public final long revision;
+
+        private Upload(long received, long revision) {
+            this.received = received;
+            this.revision = revision;
+        }
+    }
+
+    private final PersistenceService persistenceService;
+    private final Path directory;
+    private final Path uploads;
+    private final long maxSize;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Set<Path> activeUploads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory  directory of the attachments, created if missing
+     * @param maxSize    maximum size of an attachment in bytes
+     */
+    public AttachmentStore(PersistenceService persistenceService, File directory, long maxSize) throws IOException {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.persistenceService = persistenceService;
+        this.directory = directory.toPath();
+        this.uploads = this.directory.resolve(UPLOADS);
+        this.maxSize = maxSize;
+
+        Files.createDirectories(uploads);
+        // left behind by uploads interrupted by a restart; chunked uploads may still be resumed for a while
+        long expired = System.currentTimeMillis() - SPOOL_EXPIRY;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(uploads)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().endsWith(SPOOL_SUFFIX) || Files.getLastModifiedTime(file).toMillis() < expired) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current revision of the attachment, or {@code null} if there is none
+     */
+    public Attachment open(String orgId, String solutionId, String docId, String name) throws IOException {
+        long missing = 0;
+        while (true) {
+            JsonNode reference = reference(persistenceService.retrieve(orgId, solutionId, docId), name);
+            if (reference == null) {
+                return null;
+            }
+            long revision = reference.path(REV).asLong();
+            if (revision == missing) {
+                LOGGER.warning("File of attachment " + name + " revision " + revision + " of document " + docId + " in organization " + orgId + " is missing");
+                return null;
+            }
+            try {
+                FileChannel channel = FileChannel.open(file(orgId, solutionId, docId, name, revision), StandardOpenOption.READ);
+                return new Attachment(revision, reference.path(CONTENT_TYPE).asText(), channel);
+            } catch (NoSuchFileException e) {
+                // replaced by a new revision since the document was read
+                missing = revision;
+            }
+        }
+    }
+
+    /**
+     * Insert or update an attachment, streaming its content to disk.
+     *
+     * @param expectedRevision  current revision of the attachment, or {@code 0} to insert it
+     * @param contentLength     length of the content, or {@code -1} if unknown
+     * @return new revision of the attachment
+     * @throws UpdateException  {@link HttpStatus#NOT_FOUND} if there is no such document,
+     *                          {@link HttpStatus#CONFLICT} if inserting an attachment which exists,
+     *                          {@link HttpStatus#PRECONDITION_FAILED} if the attachment has another revision,
+     *                          {@link HttpStatus#FORBIDDEN} if the name is invalid,
+     *                          {@link HttpStatus#REQUEST_ENTITY_TOO_LARGE} if the content is too large
+     */
+    public long put(String orgId, String solutionId, String docType, String docId, String name, MediaType contentType,
+                    long expectedRevision, long contentLength, InputStream content) throws UpdateException, IOException {
+        if (!NAME_REGEX.matcher(name).matches()) {
+            throw new UpdateException(HttpStatus.FORBIDDEN);
+        }
+        if (contentLength > maxSize) {
+            throw new UpdateException(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+        // fail early rather than after a possibly long upload
+        ObjectNode document = persistenceService.retrieve(orgId, solutionId, docId);
+        if (document == null) {
+            throw new UpdateException(HttpStatus.NOT_FOUND);
+        }
+        check(reference(document, name), expectedRevision);
+
+        Path upload = Files.createTempFile(uploads, "upload", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+                if (copy(content, channel, maxSize + 1) > maxSize) {
+                    throw new UpdateException(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+                }
+                channel.force(true);
+            }
+            ReentrantLock lock = lock(orgId, solutionId, docId);
+            lock.lock();
+            try {
+                return commit(orgId, solutionId, docType, docId, name, contentType, expectedRevision, upload);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    /**
+     * Store one chunk of an attachment uploaded in several requests, and commit the attachment once all of it has been
+     * received. Whatever part of the chunk is received is kept, even if the request fails halfway.
+     *
+     * @param expectedRevision  current revision of the attachment, or {@code 0} to insert it
+     * @param first             offset of the chunk, which may not be beyond what has been received so far
+     * @param count             size of the chunk
+     * @param total             size of the whole attachment
+     * @throws UpdateException  like {@link #put}, and {@link HttpStatus#REQUESTED_RANGE_NOT_SATISFIABLE} if the chunk
+     *                          starts beyond what has been received or ends beyond the total size,
+     *                          {@link HttpStatus#CONFLICT} if another chunk of the same upload is being received
+     */
+    public Upload putChunk(String orgId, String solutionId, String docType, String docId, String name, MediaType contentType,
+                           long expectedRevision, long first, long count, long total, InputStream content) throws UpdateException, IOException {
+        if (!NAME_REGEX.matcher(name).matches()) {
+            throw new UpdateException(HttpStatus.FORBIDDEN);
+        }
+        if (total > maxSize) {
+            throw new UpdateException(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+        if (first < 0 || count < 0 || first + count > total) {
+            throw new UpdateException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+        Path spool = spool(orgId, solutionId, docId, name, expectedRevision, total);
+        try {
+            ObjectNode document = persistenceService.retrieve(orgId, solutionId, docId);
+            if (document == null) {
+                throw new UpdateException(HttpStatus.NOT_FOUND);
+            }
+            check(reference(document, name), expectedRevision);
+        } catch (UpdateException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+
+        if (!activeUploads.add(spool)) {
+            throw new UpdateException(HttpStatus.CONFLICT);
+        }
+        try {
+            long received;
+            try (FileChannel channel = FileChannel.open(spool, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (first > channel.size()) {
+                    throw new UpdateException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                }
+                // a chunk sent again replaces what was received of it
+                channel.truncate(first);
+                channel.position(first);
+                try {
+                    copy(content, channel, count);
+                } finally {
+                    channel.force(false);
+                }
+                received = channel.size();
+            }
+            if (received < total) {
+                return new Upload(received, 0);
+            }
+
+            boolean failed = true;
+            try {
+                long revision;
+                ReentrantLock lock = lock(orgId, solutionId, docId);
+                lock.lock();
+                try {
+                    revision = commit(orgId, solutionId, docType, docId, name, contentType, expectedRevision, spool);
+                } finally {
+                    lock.unlock();
+                }
+                failed = false;
+                return new Upload(received, revision);
+            } finally {
+                if (failed) {
+                    // the revision it was based on is gone, so it can never be committed
+                    Files.deleteIfExists(spool);
+                }
+            }
+        } finally {
+            activeUploads.remove(spool);
+        }
+    }
+
+    /**
+     * @return progress of a chunked upload, which has received nothing if it is unknown
+     */
+    public Upload uploaded(String orgId, String solutionId, String docId, String name, long expectedRevision, long total) throws IOException {
+        Path spool = spool(orgId, solutionId, docId, name, expectedRevision, total);
+        try {
+            return new Upload(Files.size(spool), 0);
+        } catch (NoSuchFileException e) {
+            return new Upload(0, 0);
+        }
+    }
+
+    /**
+     * @throws UpdateException  {@link HttpStatus#NOT_FOUND} if there is no such attachment,
+     *                          {@link HttpStatus#PRECONDITION_FAILED} if it has another revision
+     */
+    public void delete(String orgId, String solutionId, String docType, String docId, String name,
+                       long expectedRevision) throws UpdateException, IOException {
+        ReentrantLock lock = lock(orgId, solutionId, docId);
+        lock.lock();
+        try {
+            while (true) {
+                ObjectNode document = persistenceService.retrieve(orgId, solutionId, docId);
+                JsonNode reference = reference(document, name);
+                if (reference == null) {
+                    throw new UpdateException(HttpStatus.NOT_FOUND);
+                }
+                check(reference, expectedRevision);
+
+                ((ObjectNode) document.get(ATTACHMENTS)).remove(name);
+                if (apply(orgId, solutionId, docType, docId, document)) {
+                    Files.deleteIfExists(file(orgId, solutionId, docId, name, expectedRevision));
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the {@code _attachments} of a document sent by a client with the current ones.
+     */
+    public void keepAttachments(String orgId, String solutionId, String docId, ObjectNode body) {
+        body.remove(ATTACHMENTS);
+        ObjectNode current = persistenceService.retrieve(orgId, solutionId, docId);
+        if (current != null && current.has(ATTACHMENTS)) {
+            body.set(ATTACHMENTS, current.get(ATTACHMENTS));
+        }
+    }
+
+    /**
+     * Delete the files of a document which are no longer referenced by it, which is all of them after it was deleted.
+     */
+    public void prune(String orgId, String solutionId, String docId) throws IOException {
+        ReentrantLock lock = lock(orgId, solutionId, docId);
+        lock.lock();
+        try {
+            Path documentDirectory = directory.resolve(segment(orgId)).resolve(segment(solutionId)).resolve(segment(docId));
+            if (!Files.isDirectory(documentDirectory)) {
+                return;
+            }
+            ObjectNode document = persistenceService.retrieve(orgId, solutionId, docId);
+            for (Path attachmentDirectory : list(documentDirectory)) {
+                for (Path file : list(attachmentDirectory)) {
+                    if (!file.equals(referencedFile(orgId, solutionId, docId, document, attachmentDirectory))) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                deleteIfEmpty(attachmentDirectory);
+            }
+            deleteIfEmpty(documentDirectory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long commit(String orgId, String solutionId, String docType, String docId, String name, MediaType contentType,
+                        long expectedRevision, Path upload) throws UpdateException, IOException {
+        Path placed = upload;
+        boolean committed = false;
+        try {
+            while (true) {
+                ObjectNode document = persistenceService.retrieve(orgId, solutionId, docId);
+                if (document == null) {
+                    throw new UpdateException(HttpStatus.NOT_FOUND);
+                }
+                JsonNode reference = reference(document, name);
+                check(reference, expectedRevision);
+
+                // the document has had a new revision since the expected one was committed
+                long revision = document.path(REV).asLong();
+                Path target = file(orgId, solutionId, docId, name, revision);
+                if (!placed.equals(target)) {
+                    Files.createDirectories(target.getParent());
+                    Files.move(placed, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    placed = target;
+                }
+
+                ObjectNode attachments = document.has(ATTACHMENTS) ? (ObjectNode) document.get(ATTACHMENTS) : document.putObject(ATTACHMENTS);
+                attachments.set(name, mapper.valueToTree(new AttachmentReference(revision, contentType)));
+                if (apply(orgId, solutionId, docType, docId, document)) {
+                    committed = true;
+                    if (expectedRevision > 0) {
+                        Files.deleteIfExists(file(orgId, solutionId, docId, name, expectedRevision));
+                    }
+                    return revision;
+                }
+            }
+        } finally {
+            if (!committed && placed != upload) {
+                Files.deleteIfExists(placed);
+            }
+        }
+    }
+
+    /**
+     * Write a document read earlier, with its revision at the time as the expected one.
+     *
+     * @return {@code false} if the document has been changed since, and should be read again
+     * @throws UpdateException  {@link HttpStatus#NOT_FOUND} if the document has another type
+     */
+    private boolean apply(String orgId, String solutionId, String docType, String docId, ObjectNode document) throws UpdateException {
+        long revision = document.path(REV).asLong();
+        try {
+            persistenceService.update(orgId, solutionId, new DocumentReference(docId, docType, revision), document);
+            return true;
+        } catch (UpdateException e) {
+            if (e.getStatusCode() == HttpStatus.PRECONDITION_FAILED && persistenceService.revision(orgId, solutionId, docId) == revision) {
+                throw new UpdateException(HttpStatus.NOT_FOUND);
+            }
+            if (e.getStatusCode() != HttpStatus.PRECONDITION_FAILED) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private static void check(JsonNode reference, long expectedRevision) throws UpdateException {
+        if (expectedRevision == 0) {
+            if (reference != null) {
+                throw new UpdateException(HttpStatus.CONFLICT);
+            }
+        } else if (reference == null || reference.path(REV).asLong() != expectedRevision) {
+            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+        }
+    }
+
+    /**
+     * Copy up to {@code limit} bytes from {@code content} to the current position of {@code channel}.
+     *
+     * @return number of bytes copied
+     */
+    private static long copy(InputStream content, FileChannel channel, long limit) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int read;
+        while (size < limit && (read = content.read(buffer, 0, (int) Math.min(buffer.length, limit - size))) != -1) {
+            size += read;
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return spool file of a chunked upload, which is the same for all chunks of it
+     */
+    private Path spool(String orgId, String solutionId, String docId, String name, long expectedRevision, long total) {
+        String upload = segment(orgId) + '/' + segment(solutionId) + '/' + segment(docId) + '/' + segment(name) + '/' + expectedRevision + '/' + total;
+        return uploads.resolve(DigestUtils.sha256Hex(upload) + SPOOL_SUFFIX);
+    }
+
+    private static JsonNode reference(ObjectNode document, String name) {
+        if (document == null) {
+            return null;
+        }
+        JsonNode reference = document.path(ATTACHMENTS).get(name);
+        return (reference != null && reference.isObject()) ? reference : null;
+    }
+
+    private Path referencedFile(String orgId, String solutionId, String docId, ObjectNode document, Path attachmentDirectory) {
+        JsonNode attachments = (document != null) ? document.path(ATTACHMENTS) : null;
+        if (attachments == null) {
+            return null;
+        }
+        Iterator<String> names = attachments.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (attachmentDirectory.getFileName().toString().equals(segment(name))) {
+                return file(orgId, solutionId, docId, name, attachments.get(name).path(REV).asLong());
+            }
+        }
+        return null;
+    }
+
+    private Path file(String orgId, String solutionId, String docId, String name, long revision) {
+        return directory.resolve(segment(orgId)).resolve(segment(solutionId)).resolve(segment(docId)).resolve(segment(name)).resolve(Long.toString(revision));
+    }
+
+    private static Iterable<Path> list(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                paths.add(entry);
+            }
+        }
+        return paths;
+    }
+
+    private static void deleteIfEmpty(Path directory) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            if (entries.iterator().hasNext()) {
+                return;
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Encode an id as a single path segment, which cannot refer to another directory.
+     */
+    private static String segment(String id) {
+        try {
+            String encoded = URLEncoder.encode(id, "UTF-8");
+            return (encoded.equals(".") || encoded.equals("..")) ? encoded.replace(".", "%2E") : encoded;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ReentrantLock lock(String orgId, String solutionId, String docId) {
+        int hash = (orgId.hashCode() * 31 + solutionId.hashCode()) * 31 + docId.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
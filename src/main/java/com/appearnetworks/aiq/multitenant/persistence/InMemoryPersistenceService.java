@@ -1,136 +1,508 @@
 package com.appearnetworks.aiq.multitenant.persistence;
 
-import com.appearnetworks.aiq.multitenant.integration.BusinessDocument;
+import com.appearnetworks.aiq.multitenant.integration.DocumentChanges;
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
 import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
 import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.http.HttpStatus;
-import org.springframework.stereotype.Repository;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-@Repository
-public class InMemoryPersistenceService implements PersistenceService {
+/**
+ * Keeps all documents in memory.
+ *
+ * Organizations and solutions are held in concurrent maps, so tenants never contend with each other, and each
+ * {@link Solution} applies writes atomically per document, using the revision as the expected value. Reads take no
+ * lock.
+ *
+ * Bodies are serialized once when they are written, together with their revision, and never hold on to the tree
+ * given by the caller, so that reading a document needs no serialization and nobody can modify a stored revision.
+ *
+ * Change tokens and page cursors are the number of a change in the solution's sequence, prefixed by a random epoch,
+ * so that those handed out by an earlier instance are recognized as unusable.
+ *
+ * Given a spill directory, the memory taken by each solution is estimated, and the least recently used solutions are
+ * written to files and dropped from memory whenever an organization exceeds its quota, or all of them exceed the memory
+ * budget. They are loaded back when next used. Checks run periodically, so the limits may be exceeded in between.
+ */
+public class InMemoryPersistenceService implements PersistenceService, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(InMemoryPersistenceService.class.getName());
 
     private static final String REV = "_rev";
+    private static final String SPILL_SUFFIX = ".spill";
 
-    private final Map<String, Map<String, Map<String, BusinessDocument>>> organizations = new HashMap<>();
+    interface Visitor {
+        void solution(String orgId, String solutionId) throws IOException;
 
-    @Override
-    public synchronized Collection<DocumentReference> list(String orgId, String solutionId) {
-        Map<String, Map<String, BusinessDocument>> solutions = organizations.get(orgId);
-        if (solutions == null) {
-            return Collections.emptyList();
-        }
+        void document(DocumentReference document, SerializedDocument body) throws IOException;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Solution>> organizations = new ConcurrentHashMap<>();
 
-        Map<String, BusinessDocument> documents = solutions.get(solutionId);
-        if (documents == null) {
-            return Collections.emptyList();
+    private final String epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+
+    private final File spillDirectory;
+    private final long memoryBudget;
+    private final long tenantQuota;
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong spillFiles = new AtomicLong();
+    private final ScheduledExecutorService evictionExecutor;
+
+    private static final class Resident {
+        final Solution solution;
+        final long lastAccess;
+
+        Resident(Solution solution) {
+            this.solution = solution;
+            this.lastAccess = solution.lastAccess();
         }
+    }
 
-        return documents.values().stream().map(DocumentReference::new).collect(Collectors.toList());
+    /**
+     * Keep all documents in memory.
+     */
+    public InMemoryPersistenceService() {
+        spillDirectory = null;
+        memoryBudget = 0;
+        tenantQuota = 0;
+        evictionExecutor = null;
     }
 
-    @Override
-    public synchronized ObjectNode retrieve(String orgId, String solutionId, String docId) {
-        Map<String, Map<String, BusinessDocument>> solutions = organizations.get(orgId);
-        if (solutions == null) {
-            return null;
+    /**
+     * @param spillDirectory    directory of spilled solutions, created if missing; files left in it are deleted
+     * @param memoryBudget      bytes of documents to keep in memory, or {@code 0} for no limit
+     * @param tenantQuota       bytes of documents of each organization to keep in memory, or {@code 0} for no limit
+     * @param evictionInterval  seconds between checks of the limits, or {@code 0} to only check them in {@link #evict}
+     */
+    public InMemoryPersistenceService(File spillDirectory, long memoryBudget, long tenantQuota, long evictionInterval) throws IOException {
+        Files.createDirectories(spillDirectory.toPath());
+        File[] stale = spillDirectory.listFiles((dir, name) -> name.endsWith(SPILL_SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                Files.delete(file.toPath());
+            }
         }
+        this.spillDirectory = spillDirectory;
+        this.memoryBudget = memoryBudget;
+        this.tenantQuota = tenantQuota;
 
-        Map<String, BusinessDocument> documents = solutions.get(solutionId);
-        if (documents == null) {
-            return null;
+        if (evictionInterval > 0) {
+            evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistence-eviction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictionExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    evict();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Could not spill documents to " + spillDirectory, e);
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.SECONDS);
+        } else {
+            evictionExecutor = null;
         }
+    }
 
-        BusinessDocument doc = documents.get(docId);
-        return (doc != null) ? doc.getBody() : null;
+    /**
+     * @return a live view of the documents, which is not copied, so that it can be streamed without holding the whole
+     *         list in memory; iteration is weakly consistent with concurrent writes, and returns the stored references
+     */
+    @Override
+    public Collection<DocumentReference> list(String orgId, String solutionId) {
+        Solution solution = solution(orgId, solutionId);
+        return (solution != null) ? solution.documents() : Collections.emptyList();
     }
 
+    /**
+     * @return a live view of the documents of the type in change order, like {@link #list(String, String)}
+     */
     @Override
-    public synchronized long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
-        Map<String, Map<String, BusinessDocument>> solutions = organizations.get(orgId);
-        boolean hasOrganization = (solutions != null);
-        if (! hasOrganization) {
-            solutions = new HashMap<>();
+    public Collection<DocumentReference> list(String orgId, String solutionId, String docType) {
+        Solution solution = solution(orgId, solutionId);
+        return (solution != null) ? solution.documents(docType) : Collections.emptyList();
+    }
+
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String cursor, int limit) {
+        return list(orgId, solutionId, null, cursor, limit);
+    }
+
+    /**
+     * @param docType  type of the documents, or {@code null} for all of them
+     */
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String docType, String cursor, int limit) {
+        long after = 0;
+        if (cursor != null) {
+            after = parseToken(cursor);
+            if (after < 0) {
+                throw new IllegalArgumentException("Unknown cursor " + cursor);
+            }
         }
 
-        Map<String, BusinessDocument> documents = solutions.get(solutionId);
-        boolean hasSolution = (documents != null);
-        if (! hasSolution) {
-            documents = new HashMap<>();
+        Solution solution = solution(orgId, solutionId);
+        if (solution == null) {
+            return new DocumentPage(Collections.emptyList(), null);
         }
 
-        long initialRevision = 1;
+        List<DocumentReference> page = new ArrayList<>(Math.min(limit, solution.size()));
+        long next = (docType != null) ? solution.page(docType, after, limit, page) : solution.page(after, limit, page);
+        return new DocumentPage(page, (next >= 0) ? token(next) : null);
+    }
 
-        body.put(REV, initialRevision);
+    @Override
+    public DocumentChanges changes(String orgId, String solutionId, String since) {
+        long after = parseToken(since);
+        Solution solution = solution(orgId, solutionId);
+        if (solution == null) {
+            return new DocumentChanges(Collections.emptyList(), Collections.emptyList(), token(0), after < 0);
+        }
 
-        if (documents.putIfAbsent(docRef._id, new BusinessDocument(docRef._id, docRef._type, initialRevision, body)) != null) {
-            throw new UpdateException(HttpStatus.CONFLICT);
+        long upTo = solution.published();
+        if (after >= 0 && after <= upTo && after >= solution.horizon()) {
+            List<DocumentReference> deleted = solution.deleted(after, upTo);
+            // tombstones may have been pruned while collecting them
+            if (after >= solution.horizon()) {
+                return new DocumentChanges(solution.changed(after, upTo), deleted, token(upTo), false);
+            }
         }
-        
-        if (! hasSolution) {
-            solutions.put(solutionId, documents);
+        return new DocumentChanges(list(orgId, solutionId), Collections.emptyList(), token(upTo), true);
+    }
+
+    /**
+     * @return the number of the last change in the solution, prefixed by the epoch like a change token
+     */
+    @Override
+    public String version(String orgId, String solutionId) {
+        Solution solution = solution(orgId, solutionId);
+        return token((solution != null) ? solution.published() : 0);
+    }
+
+    /**
+     * @return a new tree parsed from the stored body, which the caller may modify
+     */
+    @Override
+    public ObjectNode retrieve(String orgId, String solutionId, String docId) {
+        SerializedDocument body = retrieveSerialized(orgId, solutionId, docId);
+        if (body == null) {
+            return null;
         }
-        if (! hasOrganization) {
-            organizations.put(orgId, solutions);
+        try {
+            return (ObjectNode) MAPPER.readTree(body.json);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not parse document " + docId, e);
         }
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docId) {
+        Solution solution = solution(orgId, solutionId);
+        return (solution != null) ? solution.body(docId) : null;
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docType, String docId) {
+        Solution solution = solution(orgId, solutionId);
+        return (solution != null) ? solution.body(docType, docId) : null;
+    }
 
-        return initialRevision;
+    @Override
+    public long revision(String orgId, String solutionId, String docId) {
+        DocumentReference doc = document(orgId, solutionId, docId);
+        return (doc != null) ? doc._rev : 0;
     }
 
     @Override
-    public synchronized long update(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
-        Map<String, Map<String, BusinessDocument>> solutions = organizations.get(orgId);
-        if (solutions == null) {
+    public long revision(String orgId, String solutionId, String docType, String docId) {
+        DocumentReference doc = document(orgId, solutionId, docId);
+        return (doc != null && doc._type.equals(docType)) ? doc._rev : 0;
+    }
+
+    @Override
+    public long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
+        return insert(orgId, solutionId, docRef, serialize(body, 1));
+    }
+
+    @Override
+    public long update(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
+        return update(orgId, solutionId, docRef, serialize(body, docRef._rev + 1));
+    }
+
+    @Override
+    public void delete(String orgId, String solutionId, DocumentReference docRef) throws UpdateException {
+        Solution solution = solution(orgId, solutionId);
+        if (solution == null) {
             throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
         }
 
-        Map<String, BusinessDocument> documents = solutions.get(solutionId);
-        if (documents == null) {
+        // Empty solutions are kept: removing them would race with an insert that already holds a reference.
+        solution.delete(docRef);
+    }
+
+    @Override
+    public List<WriteResult> write(String orgId, String solutionId, List<DocumentWrite> writes) {
+        List<WriteResult> results = new ArrayList<>(writes.size());
+        for (DocumentWrite write : writes) {
+            try {
+                if (write.body == null) {
+                    delete(orgId, solutionId, write.docRef);
+                    results.add(new WriteResult(HttpStatus.NO_CONTENT, 0));
+                } else if (write.docRef._rev == 0) {
+                    results.add(new WriteResult(HttpStatus.CREATED, insert(orgId, solutionId, write.docRef, write.body)));
+                } else {
+                    results.add(new WriteResult(HttpStatus.NO_CONTENT, update(orgId, solutionId, write.docRef, write.body)));
+                }
+            } catch (UpdateException e) {
+                results.add(new WriteResult(e.getStatusCode(), 0));
+            } catch (IllegalArgumentException e) {
+                // invalid id or type
+                results.add(new WriteResult(HttpStatus.BAD_REQUEST, 0));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Insert a document serialized by {@link #serialize}.
+     */
+    long insert(String orgId, String solutionId, DocumentReference docRef, SerializedDocument body) throws UpdateException {
+        return createSolution(orgId, solutionId).insert(docRef, body);
+    }
+
+    /**
+     * Update a document serialized by {@link #serialize}.
+     */
+    long update(String orgId, String solutionId, DocumentReference docRef, SerializedDocument body) throws UpdateException {
+        Solution solution = solution(orgId, solutionId);
+        if (solution == null) {
             throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
         }
 
-        long updatedRevision = docRef._rev + 1;
+        return solution.update(docRef, body);
+    }
+
+    DocumentReference document(String orgId, String solutionId, String docId) {
+        Solution solution = solution(orgId, solutionId);
+        return (solution != null) ? solution.get(docId) : null;
+    }
 
-        body.put(REV, updatedRevision);
+    /**
+     * Store a document as is, without checking its revision.
+     */
+    void put(String orgId, String solutionId, DocumentReference document, SerializedDocument body) {
+        createSolution(orgId, solutionId).put(document, body);
+    }
 
-        if (! documents.replace(
-                docRef._id,
-                new BusinessDocument(docRef._id, docRef._type, docRef._rev, null),
-                new BusinessDocument(docRef._id, docRef._type, updatedRevision, body))) {
-            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+    /**
+     * Remove a document regardless of its revision.
+     */
+    void remove(String orgId, String solutionId, String docId) {
+        Solution solution = solution(orgId, solutionId);
+        if (solution != null) {
+            solution.remove(docId);
         }
+    }
 
-        return updatedRevision;
+    /**
+     * Visit all documents, solution by solution. Writes made during the visit may or may not be seen.
+     */
+    void visit(Visitor visitor) throws IOException {
+        for (Map.Entry<String, ConcurrentMap<String, Solution>> organization : organizations.entrySet()) {
+            for (Map.Entry<String, Solution> solution : organization.getValue().entrySet()) {
+                if (solution.getValue().size() == 0) {
+                    continue;
+                }
+                visitor.solution(organization.getKey(), solution.getKey());
+                solution.getValue().visit(visitor);
+            }
+        }
     }
 
+    /**
+     * Spill the least recently used solutions of each organization above its quota, and then of all organizations
+     * until they are within the memory budget. Solutions being written are skipped. Does nothing without a spill
+     * directory.
+     */
+    public synchronized void evict() {
+        if (spillDirectory == null) {
+            return;
+        }
+        // solutions used from now on are more recent than all those used before
+        clock.incrementAndGet();
+
+        Comparator<Resident> leastRecentlyUsed = Comparator.comparingLong(resident -> resident.lastAccess);
+        List<Resident> residents = new ArrayList<>();
+        long total = 0;
+        long freed = 0;
+        int spilled = 0;
+        for (ConcurrentMap<String, Solution> solutions : organizations.values()) {
+            List<Resident> organization = new ArrayList<>();
+            long footprint = 0;
+            for (Solution solution : solutions.values()) {
+                long solutionFootprint = solution.footprint();
+                if (solutionFootprint > 0) {
+                    organization.add(new Resident(solution));
+                    footprint += solutionFootprint;
+                }
+            }
+
+            if (tenantQuota > 0 && footprint > tenantQuota) {
+                organization.sort(leastRecentlyUsed);
+                for (Iterator<Resident> iterator = organization.iterator(); footprint > tenantQuota && iterator.hasNext(); ) {
+                    long bytes = spill(iterator.next().solution);
+                    if (bytes > 0) {
+                        iterator.remove();
+                        footprint -= bytes;
+                        freed += bytes;
+                        spilled++;
+                    }
+                }
+            }
+            residents.addAll(organization);
+            total += footprint;
+        }
+
+        if (memoryBudget > 0 && total > memoryBudget) {
+            residents.sort(leastRecentlyUsed);
+            for (Iterator<Resident> iterator = residents.iterator(); total > memoryBudget && iterator.hasNext(); ) {
+                long bytes = spill(iterator.next().solution);
+                total -= bytes;
+                freed += bytes;
+                if (bytes > 0) {
+                    spilled++;
+                }
+            }
+        }
+
+        if (spilled > 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Spilled {0} solutions of {1} bytes, {2} bytes left in memory", new Object[] {spilled, freed, total});
+        }
+    }
+
+    /**
+     * Stop checking the limits, and delete the spill files.
+     */
     @Override
-    public synchronized void delete(String orgId, String solutionId, DocumentReference docRef) throws UpdateException {
-        Map<String, Map<String, BusinessDocument>> solutions = organizations.get(orgId);
-        if (solutions == null) {
-            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+    public void close() {
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+            try {
+                evictionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (ConcurrentMap<String, Solution> solutions : organizations.values()) {
+            solutions.values().forEach(Solution::discard);
         }
+    }
 
-        Map<String, BusinessDocument> documents = solutions.get(solutionId);
-        if (documents == null) {
-            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+    /**
+     * Serialize a body with the given revision as its {@code _rev} field, without modifying it. The field keeps its
+     * place if the body already has one, and is added last otherwise.
+     */
+    static SerializedDocument serialize(ObjectNode body, long revision) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(bytes)) {
+            generator.writeStartObject();
+            boolean revisionWritten = false;
+            Iterator<Map.Entry<String, JsonNode>> fields = body.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (REV.equals(field.getKey())) {
+                    generator.writeNumberField(REV, revision);
+                    revisionWritten = true;
+                } else {
+                    generator.writeFieldName(field.getKey());
+                    MAPPER.writeTree(generator, field.getValue());
+                }
+            }
+            if (!revisionWritten) {
+                generator.writeNumberField(REV, revision);
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new PersistenceException("Could not serialize document", e);
         }
+        return new SerializedDocument(revision, bytes.toByteArray());
+    }
 
-        if (! documents.remove(docRef._id, new BusinessDocument(docRef._id, docRef._type, docRef._rev, null))) {
-            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+    private Solution solution(String orgId, String solutionId) {
+        ConcurrentMap<String, Solution> solutions = organizations.get(orgId);
+        return (solutions != null) ? solutions.get(solutionId) : null;
+    }
+
+    private Solution createSolution(String orgId, String solutionId) {
+        Solution solution = solution(orgId, solutionId);
+        if (solution != null) {
+            return solution;
         }
 
-        if (documents.size() == 0) {
-            solutions.remove(solutionId);
+        return organizations
+                .computeIfAbsent(orgId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(solutionId, id -> (spillDirectory != null)
+                        ? new Solution(new File(spillDirectory, spillFiles.incrementAndGet() + SPILL_SUFFIX), clock)
+                        : new Solution());
+    }
+
+    /**
+     * @return bytes freed
+     */
+    private long spill(Solution solution) {
+        try {
+            return solution.spill();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not spill documents to " + spillDirectory, e);
+            return 0;
         }
+    }
 
-        if (solutions.size() == 0) {
-            organizations.remove(orgId);
+    private String token(long sequence) {
+        return epoch + '-' + sequence;
+    }
+
+    /**
+     * @return change number in the token, or {@code -1} if it is missing or was not handed out by this instance
+     */
+    private long parseToken(String token) {
+        if (token == null || !token.startsWith(epoch + '-')) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(token.substring(epoch.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,415 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.BusinessDocument;
+import com.appearnetworks.aiq.multitenant.integration.DocumentChanges;
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.http.HttpStatus;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps all documents in memory, and appends every change to a {@link WriteAheadLog} so that they survive a restart.
+ *
+ * A write is applied in memory, where readers see it, only once its log record is on disk; a batch of writes waits
+ * for the disk only once, after the last one. Writes to the same document are serialized by a lock stripe, held until
+ * the write is applied, so that each one is checked against the previous one and their records are appended in the
+ * same order as they are applied.
+ *
+ * A {@link Snapshot} of all documents is written periodically in the background, after which the log segments it
+ * covers are deleted. The log only rolls over to a new segment while no write is between appending its record and
+ * applying it, so that a snapshot includes every record in the segments it covers. It may also include changes made
+ * after it started; replaying their records on top of it leads to the same state, since each record holds the
+ * complete document.
+ *
+ * The documents are held by an {@link InMemoryPersistenceService}, which may spill those of idle solutions to disk.
+ */
+public class JournalingPersistenceService implements PersistenceService, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(JournalingPersistenceService.class.getName());
+
+    private static final int LOCK_STRIPES = 256;
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SNAPSHOT_TEMPORARY = "snapshot.tmp";
+
+    private final InMemoryPersistenceService index;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // shared by writes from appending their records until they are applied, taken exclusively to roll the log over
+    private final ReentrantReadWriteLock applying = new ReentrantReadWriteLock();
+    private final File directory;
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService snapshotExecutor;
+
+    private long snapshotPosition;
+
+    /**
+     * Open the log without periodic snapshots.
+     *
+     * @param directory    directory of the log, created if missing
+     * @param segmentSize  size of each log segment in bytes, which also limits the size of a document
+     */
+    public JournalingPersistenceService(File directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, 0);
+    }
+
+    /**
+     * @param directory         directory of the log, created if missing
+     * @param segmentSize       size of each log segment in bytes, which also limits the size of a document
+     * @param snapshotInterval  seconds between snapshots, or {@code 0} to never take them in the background
+     */
+    public JournalingPersistenceService(File directory, int segmentSize, long snapshotInterval) throws IOException {
+        this(directory, segmentSize, snapshotInterval, new InMemoryPersistenceService());
+    }
+
+    /**
+     * @param directory         directory of the log, created if missing
+     * @param segmentSize       size of each log segment in bytes, which also limits the size of a document
+     * @param snapshotInterval  seconds between snapshots, or {@code 0} to never take them in the background
+     * @param index             empty store to hold the documents, which is closed with this one
+     */
+    public JournalingPersistenceService(File directory, int segmentSize, long snapshotInterval, InMemoryPersistenceService index) throws IOException {
+        this.index = index;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.directory = directory;
+
+        long start = System.nanoTime();
+        long firstSegment = 0;
+        long[] documents = {0};
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            firstSegment = Snapshot.read(snapshot, (orgId, solutionId, docId, docType, revision, body) -> {
+                index.put(orgId, solutionId, new DocumentReference(docId, docType, revision), new SerializedDocument(revision, body));
+                documents[0]++;
+            });
+        }
+        long loaded = System.nanoTime();
+
+        long[] records = {0};
+        log = new WriteAheadLog(directory, segmentSize, firstSegment, record -> {
+            replay(record);
+            records[0]++;
+        });
+        long replayed = System.nanoTime();
+        // replayed records are not in a snapshot yet
+        snapshotPosition = (records[0] > 0) ? -1 : 0;
+
+        LOGGER.info("Started document store in " + directory + " in " + TimeUnit.NANOSECONDS.toMillis(replayed - start) + " ms: " +
+                    "loaded " + documents[0] + " documents from snapshot in " + TimeUnit.NANOSECONDS.toMillis(loaded - start) + " ms, " +
+                    "replayed " + records[0] + " log records in " + TimeUnit.NANOSECONDS.toMillis(replayed - loaded) + " ms");
+
+        if (snapshotInterval > 0) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistence-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Could not write snapshot in " + directory, e);
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        } else {
+            snapshotExecutor = null;
+        }
+    }
+
+    @Override
+    public Collection<DocumentReference> list(String orgId, String solutionId) {
+        return index.list(orgId, solutionId);
+    }
+
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String cursor, int limit) {
+        return index.list(orgId, solutionId, cursor, limit);
+    }
+
+    @Override
+    public Collection<DocumentReference> list(String orgId, String solutionId, String docType) {
+        return index.list(orgId, solutionId, docType);
+    }
+
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String docType, String cursor, int limit) {
+        return index.list(orgId, solutionId, docType, cursor, limit);
+    }
+
+    @Override
+    public DocumentChanges changes(String orgId, String solutionId, String since) {
+        return index.changes(orgId, solutionId, since);
+    }
+
+    @Override
+    public String version(String orgId, String solutionId) {
+        return index.version(orgId, solutionId);
+    }
+
+    @Override
+    public ObjectNode retrieve(String orgId, String solutionId, String docId) {
+        return index.retrieve(orgId, solutionId, docId);
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docId) {
+        return index.retrieveSerialized(orgId, solutionId, docId);
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docType, String docId) {
+        return index.retrieveSerialized(orgId, solutionId, docType, docId);
+    }
+
+    @Override
+    public long revision(String orgId, String solutionId, String docId) {
+        return index.revision(orgId, solutionId, docId);
+    }
+
+    @Override
+    public long revision(String orgId, String solutionId, String docType, String docId) {
+        return index.revision(orgId, solutionId, docType, docId);
+    }
+
+    @Override
+    public long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
+        SerializedDocument serialized = InMemoryPersistenceService.serialize(body, 1);
+        write(orgId, solutionId, docRef, serialized, true);
+        return serialized.revision;
+    }
+
+    @Override
+    public long update(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
+        SerializedDocument serialized = InMemoryPersistenceService.serialize(body, docRef._rev + 1);
+        write(orgId, solutionId, docRef, serialized, false);
+        return serialized.revision;
+    }
+
+    @Override
+    public void delete(String orgId, String solutionId, DocumentReference docRef) throws UpdateException {
+        write(orgId, solutionId, docRef, null, false);
+    }
+
+    /**
+     * Check and append all writes first, and wait for the log once, so that the whole batch takes a single fsync. The
+     * lock stripes of all documents in the batch are taken in order, and held until the batch is applied.
+     */
+    @Override
+    public List<WriteResult> write(String orgId, String solutionId, List<DocumentWrite> writes) {
+        List<WriteResult> results = new ArrayList<>(writes.size());
+        byte[][] records = new byte[writes.size()][];
+        SerializedDocument[] bodies = new SerializedDocument[writes.size()];
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int i = 0; i < writes.size(); i++) {
+            DocumentWrite write = writes.get(i);
+            results.add(null);
+            try {
+                if (write.body != null) {
+                    bodies[i] = InMemoryPersistenceService.serialize(write.body, write.docRef._rev + 1);
+                }
+                records[i] = encode(orgId, solutionId, write.docRef, bodies[i]);
+                stripes.add(stripe(orgId, solutionId, write.docRef._id));
+            } catch (UpdateException e) {
+                results.set(i, new WriteResult(e.getStatusCode(), 0));
+            }
+        }
+
+        List<ReentrantLock> held = new ArrayList<>(stripes.size());
+        try {
+            for (int stripe : stripes) {
+                locks[stripe].lock();
+                held.add(locks[stripe]);
+            }
+            applying.readLock().lock();
+            try {
+                // documents as left by the writes of the batch checked so far, null once deleted
+                Map<String, DocumentReference> written = new HashMap<>();
+                List<Integer> appended = new ArrayList<>(writes.size());
+                long position = -1;
+                try {
+                    for (int i = 0; i < writes.size(); i++) {
+                        if (records[i] == null) {
+                            continue;
+                        }
+                        DocumentWrite write = writes.get(i);
+                        String docId = write.docRef._id;
+                        try {
+                            boolean insert = write.body != null && write.docRef._rev == 0;
+                            check(write.docRef, insert, written.containsKey(docId) ? written.get(docId) : index.document(orgId, solutionId, docId));
+                            position = log.append(records[i]);
+                            appended.add(i);
+                            written.put(docId, (bodies[i] != null) ? new DocumentReference(docId, write.docRef._type, bodies[i].revision) : null);
+                            results.set(i, (bodies[i] == null)
+                                    ? new WriteResult(HttpStatus.NO_CONTENT, 0)
+                                    : new WriteResult(insert ? HttpStatus.CREATED : HttpStatus.NO_CONTENT, bodies[i].revision));
+                        } catch (UpdateException e) {
+                            results.set(i, new WriteResult(e.getStatusCode(), 0));
+                        } catch (IllegalArgumentException e) {
+                            // invalid id or type, rejected before its record was appended
+                            results.set(i, new WriteResult(HttpStatus.BAD_REQUEST, 0));
+                        }
+                    }
+                } finally {
+                    // writes already appended must be durable and applied even if a later one failed
+                    if (position >= 0) {
+                        log.sync(position);
+                        for (int i : appended) {
+                            apply(orgId, solutionId, writes.get(i).docRef, bodies[i]);
+                        }
+                    }
+                }
+            } finally {
+                applying.readLock().unlock();
+            }
+        } finally {
+            for (ReentrantLock lock : held) {
+                lock.unlock();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Write a snapshot of all documents, and delete the log segments it covers. Writers are only held up while the
+     * log rolls over to a new segment. Does nothing if nothing was written since the last snapshot.
+     */
+    public synchronized void snapshot() throws IOException {
+        if (log.position() == snapshotPosition) {
+            return;
+        }
+        snapshotPosition = log.position();
+
+        long start = System.nanoTime();
+        long firstSegment;
+        applying.writeLock().lock();
+        try {
+            firstSegment = log.rollover();
+        } finally {
+            applying.writeLock().unlock();
+        }
+        File temporary = new File(directory, SNAPSHOT_TEMPORARY);
+        long documents = Snapshot.write(temporary, firstSegment, index);
+        Files.move(temporary.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not sync directory " + directory, e);
+        }
+        log.deleteBefore(firstSegment);
+
+        LOGGER.info("Wrote snapshot of " + documents + " documents in " + directory + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            try {
+                snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+        index.close();
+    }
+
+    /**
+     * Check a write against the current revision of its document, append its record, wait for it to be durable, and
+     * only then apply it.
+     *
+     * @param body  new revision of the document, or {@code null} to delete it
+     */
+    private void write(String orgId, String solutionId, DocumentReference docRef, SerializedDocument body, boolean insert) throws UpdateException {
+        byte[] record = encode(orgId, solutionId, docRef, body);
+
+        ReentrantLock lock = locks[stripe(orgId, solutionId, docRef._id)];
+        lock.lock();
+        try {
+            check(docRef, insert, index.document(orgId, solutionId, docRef._id));
+            applying.readLock().lock();
+            try {
+                log.sync(log.append(record));
+                apply(orgId, solutionId, docRef, body);
+            } finally {
+                applying.readLock().unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param current  current revision of the document, or {@code null} if there is none
+     * @throws IllegalArgumentException if the id or type of an inserted document is not valid
+     */
+    private static void check(DocumentReference docRef, boolean insert, DocumentReference current) throws UpdateException {
+        if (insert) {
+            BusinessDocument.validateId(docRef._id, "document id");
+            BusinessDocument.validateId(docRef._type, "document type");
+            if (current != null) {
+                throw new UpdateException(HttpStatus.CONFLICT);
+            }
+        } else if (current == null || current._rev != docRef._rev || !current._type.equals(docRef._type)) {
+            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+        }
+    }
+
+    private void apply(String orgId, String solutionId, DocumentReference docRef, SerializedDocument body) {
+        if (body != null) {
+            index.put(orgId, solutionId, new DocumentReference(docRef._id, docRef._type, body.revision), body);
+        } else {
+            index.remove(orgId, solutionId, docRef._id);
+        }
+    }
+
+    private byte[] encode(String orgId, String solutionId, DocumentReference docRef, SerializedDocument body) throws UpdateException {
+        if (body == null) {
+            return LogRecord.delete(orgId, solutionId, docRef._id, docRef._type, docRef._rev).encode();
+        }
+        byte[] record = LogRecord.put(orgId, solutionId, docRef._id, docRef._type, body.revision, body.json).encode();
+        if (!log.fits(record)) {
+            throw new UpdateException(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+        return record;
+    }
+
+    private void replay(LogRecord record) {
+        if (record.operation == LogRecord.PUT) {
+            index.put(record.orgId, record.solutionId, new DocumentReference(record.docId, record.docType, record.revision),
+                      new SerializedDocument(record.revision, record.body));
+        } else {
+            index.remove(record.orgId, record.solutionId, record.docId);
+        }
+    }
+
+    private static int stripe(String orgId, String solutionId, String docId) {
+        int hash = (orgId.hashCode() * 31 + solutionId.hashCode()) * 31 + docId.hashCode();
+        return (hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1);
+    }
+}
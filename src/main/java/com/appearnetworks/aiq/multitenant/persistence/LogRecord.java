@@ -0,0 +1,82 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A single change in the write-ahead log.
+ */
+final class LogRecord {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    final byte operation;
+    final String orgId;
+    final String solutionId;
+    final String docId;
+    final String docType;
+    final long revision;
+    final byte[] body;
+
+    private LogRecord(byte operation, String orgId, String solutionId, String docId, String docType, long revision, byte[] body) {
+        this.operation = operation;
+        this.orgId = orgId;
+        this.solutionId = solutionId;
+        this.docId = docId;
+        this.docType = docType;
+        this.revision = revision;
+        this.body = body;
+    }
+
+    /**
+     * @param body  serialized document, including its revision
+     */
+    static LogRecord put(String orgId, String solutionId, String docId, String docType, long revision, byte[] body) {
+        return new LogRecord(PUT, orgId, solutionId, docId, docType, revision, body);
+    }
+
+    static LogRecord delete(String orgId, String solutionId, String docId, String docType, long revision) {
+        return new LogRecord(DELETE, orgId, solutionId, docId, docType, revision, null);
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (body != null ? body.length : 0));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(operation);
+            out.writeUTF(orgId);
+            out.writeUTF(solutionId);
+            out.writeUTF(docId);
+            out.writeUTF(docType);
+            out.writeLong(revision);
+            if (operation == PUT) {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Could not encode log record", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static LogRecord decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte operation = in.readByte();
+            String orgId = in.readUTF();
+            String solutionId = in.readUTF();
+            String docId = in.readUTF();
+            String docType = in.readUTF();
+            long revision = in.readLong();
+            byte[] body = null;
+            if (operation == PUT) {
+                body = new byte[in.readInt()];
+                in.readFully(body);
+            } else if (operation != DELETE) {
+                throw new IOException("Unknown log record operation " + operation);
+            }
+            return new LogRecord(operation, orgId, solutionId, docId, docType, revision, body);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentChanges;
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Record the latency of each operation of another {@link PersistenceService}. Rejected updates are not errors, only
+ * unexpected exceptions are.
+ *
+ * Listing all documents only creates a view of them, so its latency does not include iterating over it.
+ *
+ * Operations are not labelled by organization and solution: the latency of each tenant's requests, persistence
+ * included, is recorded per endpoint already, and ten timers per tenant would reach the cap on timers ten times sooner.
+ */
+class MeteredPersistenceService implements PersistenceService, Closeable {
+    private final PersistenceService persistenceService;
+
+    private final Metrics.Timer list;
+    private final Metrics.Timer listPage;
+    private final Metrics.Timer changes;
+    private final Metrics.Timer version;
+    private final Metrics.Timer retrieve;
+    private final Metrics.Timer revision;
+    private final Metrics.Timer insert;
+    private final Metrics.Timer update;
+    private final Metrics.Timer delete;
+    private final Metrics.Timer write;
+
+    MeteredPersistenceService(PersistenceService persistenceService, Metrics metrics) {
+        this.persistenceService = persistenceService;
+        list = metrics.timer(Metrics.PERSISTENCE, "operation", "list");
+        listPage = metrics.timer(Metrics.PERSISTENCE, "operation", "listPage");
+        changes = metrics.timer(Metrics.PERSISTENCE, "operation", "changes");
+        version = metrics.timer(Metrics.PERSISTENCE, "operation", "version");
+        retrieve = metrics.timer(Metrics.PERSISTENCE, "operation", "retrieve");
+        revision = metrics.timer(Metrics.PERSISTENCE, "operation", "revision");
+        insert = metrics.timer(Metrics.PERSISTENCE, "operation", "insert");
+        update = metrics.timer(Metrics.PERSISTENCE, "operation", "update");
+        delete = metrics.timer(Metrics.PERSISTENCE, "operation", "delete");
+        write = metrics.timer(Metrics.PERSISTENCE, "operation", "write");
+    }
+
+    @Override
+    public Collection<DocumentReference> list(String orgId, String solutionId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Collection<DocumentReference> result = persistenceService.list(orgId, solutionId);
+            error = false;
+            return result;
+        } finally {
+            list.record(start, error);
+        }
+    }
+
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String cursor, int limit) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            DocumentPage result = persistenceService.list(orgId, solutionId, cursor, limit);
+            error = false;
+            return result;
+        } catch (IllegalArgumentException e) {
+            // unknown cursor
+            error = false;
+            throw e;
+        } finally {
+            listPage.record(start, error);
+        }
+    }
+
+    @Override
+    public Collection<DocumentReference> list(String orgId, String solutionId, String docType) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Collection<DocumentReference> result = persistenceService.list(orgId, solutionId, docType);
+            error = false;
+            return result;
+        } finally {
+            list.record(start, error);
+        }
+    }
+
+    @Override
+    public DocumentPage list(String orgId, String solutionId, String docType, String cursor, int limit) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            DocumentPage result = persistenceService.list(orgId, solutionId, docType, cursor, limit);
+            error = false;
+            return result;
+        } catch (IllegalArgumentException e) {
+            // unknown cursor
+            error = false;
+            throw e;
+        } finally {
+            listPage.record(start, error);
+        }
+    }
+
+    @Override
+    public DocumentChanges changes(String orgId, String solutionId, String since) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            DocumentChanges result = persistenceService.changes(orgId, solutionId, since);
+            error = false;
+            return result;
+        } finally {
+            changes.record(start, error);
+        }
+    }
+
+    @Override
+    public String version(String orgId, String solutionId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            String result = persistenceService.version(orgId, solutionId);
+            error = false;
+            return result;
+        } finally {
+            version.record(start, error);
+        }
+    }
+
+    @Override
+    public ObjectNode retrieve(String orgId, String solutionId, String docId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            ObjectNode result = persistenceService.retrieve(orgId, solutionId, docId);
+            error = false;
+            return result;
+        } finally {
+            retrieve.record(start, error);
+        }
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            SerializedDocument result = persistenceService.retrieveSerialized(orgId, solutionId, docId);
+            error = false;
+            return result;
+        } finally {
+            retrieve.record(start, error);
+        }
+    }
+
+    @Override
+    public SerializedDocument retrieveSerialized(String orgId, String solutionId, String docType, String docId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            SerializedDocument result = persistenceService.retrieveSerialized(orgId, solutionId, docType, docId);
+            error = false;
+            return result;
+        } finally {
+            retrieve.record(start, error);
+        }
+    }
+
+    @Override
+    public long revision(String orgId, String solutionId, String docId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long result = persistenceService.revision(orgId, solutionId, docId);
+            error = false;
+            return result;
+        } finally {
+            revision.record(start, error);
+        }
+    }
+
+    @Override
+    public long revision(String orgId, String solutionId, String docType, String docId) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long result = persistenceService.revision(orgId, solutionId, docType, docId);
+            error = false;
+            return result;
+        } finally {
+            revision.record(start, error);
+        }
+    }
+
+    @Override
+    public long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode doc) throws UpdateException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long result = persistenceService.insert(orgId, solutionId, docRef, doc);
+            error = false;
+            return result;
+        } catch (UpdateException e) {
+            error = false;
+            throw e;
+        } finally {
+            insert.record(start, error);
+        }
+    }
+
+    @Override
+    public long update(String orgId, String solutionId, DocumentReference docRef, ObjectNode doc) throws UpdateException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            long result = persistenceService.update(orgId, solutionId, docRef, doc);
+            error = false;
+            return result;
+        } catch (UpdateException e) {
+            error = false;
+            throw e;
+        } finally {
+            update.record(start, error);
+        }
+    }
+
+    @Override
+    public void delete(String orgId, String solutionId, DocumentReference docRef) throws UpdateException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            persistenceService.delete(orgId, solutionId, docRef);
+            error = false;
+        } catch (UpdateException e) {
+            error = false;
+            throw e;
+        } finally {
+            delete.record(start, error);
+        }
+    }
+
+    @Override
+    public List<WriteResult> write(String orgId, String solutionId, List<DocumentWrite> writes) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            List<WriteResult> result = persistenceService.write(orgId, solutionId, writes);
+            error = false;
+            return result;
+        } finally {
+            write.record(start, error);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (persistenceService instanceof Closeable) {
+            ((Closeable) persistenceService).close();
+        }
+    }
+}
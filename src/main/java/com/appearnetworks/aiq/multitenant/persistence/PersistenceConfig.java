@@ -0,0 +1,157 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Choose the {@link PersistenceService} implementation: documents are only kept in memory unless a log directory
+ * is configured.
+ *
+ * Attachments are always stored as files, by default in the log directory, or in a temporary directory which is
+ * not reused after a restart if there is none.
+ *
+ * Given a memory budget or a quota per organization, the documents of idle solutions are spilled to files, by default
+ * in the log directory, or in a temporary directory if there is none.
+ *
+ * The latency of every persistence operation is recorded in {@link Metrics}.
+ *
+ * Requests which access them run on a bounded executor, so that a slow disk ties up neither the container's threads
+ * nor an unbounded number of its own. On Java 21 or later it may start a virtual thread per request instead, which
+ * lets many more requests wait for the disk at once, at the cost of little more than their stacks.
+ */
+@Configuration
+public class PersistenceConfig {
+
+    private static final Logger LOGGER = Logger.getLogger(PersistenceConfig.class.getName());
+
+    @Value("${aiq.persistence.directory:}")
+    private String directory;
+
+    @Value("${aiq.persistence.segmentsize:67108864}")
+    private int segmentSize;
+
+    @Value("${aiq.persistence.snapshotinterval:600}")
+    private long snapshotInterval;
+
+    @Value("${aiq.persistence.memorybudget:0}")
+    private long memoryBudget;
+
+    @Value("${aiq.persistence.tenantquota:0}")
+    private long tenantQuota;
+
+    @Value("${aiq.persistence.spilldirectory:}")
+    private String spillDirectory;
+
+    @Value("${aiq.persistence.evictioninterval:1}")
+    private long evictionInterval;
+
+    @Value("${aiq.persistence.threads:32}")
+    private int threads;
+
+    @Value("${aiq.persistence.queuesize:1000}")
+    private int queueSize;
+
+    @Value("${aiq.persistence.virtualthreads:false}")
+    private boolean virtualThreads;
+
+    @Value("${aiq.attachments.directory:}")
+    private String attachmentDirectory;
+
+    @Value("${aiq.attachments.maxsize:104857600}")
+    private long attachmentMaxSize;
+
+    @Bean
+    public PersistenceService persistenceService(Metrics metrics) throws IOException {
+        if (directory.isEmpty()) {
+            return new MeteredPersistenceService(inMemoryPersistenceService(), metrics);
+        }
+        return new MeteredPersistenceService(new JournalingPersistenceService(new File(directory), segmentSize, snapshotInterval,
+                                                                              inMemoryPersistenceService()), metrics);
+    }
+
+    private InMemoryPersistenceService inMemoryPersistenceService() throws IOException {
+        if (memoryBudget <= 0 && tenantQuota <= 0) {
+            return new InMemoryPersistenceService();
+        }
+
+        File spill;
+        if (!spillDirectory.isEmpty()) {
+            spill = new File(spillDirectory);
+        } else if (!directory.isEmpty()) {
+            spill = new File(directory, "spill");
+        } else {
+            spill = Files.createTempDirectory("aiq-spill").toFile();
+        }
+        return new InMemoryPersistenceService(spill, memoryBudget, tenantQuota, evictionInterval);
+    }
+
+    @Bean
+    public AttachmentStore attachmentStore(PersistenceService persistenceService) throws IOException {
+        File attachments;
+        if (!attachmentDirectory.isEmpty()) {
+            attachments = new File(attachmentDirectory);
+        } else if (!directory.isEmpty()) {
+            attachments = new File(directory, "attachments");
+        } else {
+            attachments = Files.createTempDirectory("aiq-attachments").toFile();
+        }
+        return new AttachmentStore(persistenceService, attachments, attachmentMaxSize);
+    }
+
+    /**
+     * With virtual threads, every request gets a thread of its own, and as many requests as the pool could have held
+     * run at once, instead of waiting in the queue.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService persistenceExecutor() {
+        if (virtualThreads) {
+            ExecutorService executor = VirtualThreads.newExecutor("persistence", threads + queueSize);
+            if (executor != null) {
+                LOGGER.info("Running persistence requests on virtual threads");
+                return executor;
+            }
+            LOGGER.warning("Virtual threads are not supported by Java " + System.getProperty("java.version") + ", using a thread pool");
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "persistence-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Completing a request dispatches it back to the servlet container, which synchronizes on the request while it
+     * takes locks of its own. On a virtual thread that pins the carrier, and once every carrier is pinned like this
+     * no virtual thread runs at all, so with virtual threads requests are completed on a platform thread instead.
+     */
+    @Bean
+    public Executor completionExecutor() {
+        if (persistenceExecutor() instanceof ThreadPoolExecutor) {
+            return Runnable::run;
+        }
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "persistence-completion");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,15 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+/**
+ * Documents could not be read from or written to durable storage.
+ */
+public class PersistenceException extends RuntimeException {
+
+    public PersistenceException(String message) {
+        super(message);
+    }
+
+    public PersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,21 +1,97 @@
 package com.appearnetworks.aiq.multitenant.persistence;
 
+import com.appearnetworks.aiq.multitenant.integration.DocumentChanges;
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
 import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
 import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.util.Collection;
+import java.util.List;
 
 public interface PersistenceService {
 
     Collection<DocumentReference> list(String orgId, String solutionId);
 
+    /**
+     * List one page of documents. Paging is stable under concurrent writes: every document that exists throughout is
+     * returned at least once, with a later revision if it was updated meanwhile.
+     *
+     * @param cursor  cursor from {@link DocumentPage#cursor}, or {@code null} for the first page
+     * @param limit   maximum number of documents in the page
+     * @throws IllegalArgumentException if the cursor was not handed out by this service
+     */
+    DocumentPage list(String orgId, String solutionId, String cursor, int limit);
+
+    /**
+     * List the documents of one type, at a cost which depends on their number rather than on all documents.
+     */
+    Collection<DocumentReference> list(String orgId, String solutionId, String docType);
+
+    /**
+     * List one page of the documents of one type, like {@link #list(String, String, String, int)}.
+     */
+    DocumentPage list(String orgId, String solutionId, String docType, String cursor, int limit);
+
+    /**
+     * List the documents inserted, updated or deleted since an earlier call.
+     *
+     * @param since  token from {@link DocumentChanges#token}, or {@code null} to list all documents
+     * @return changes after {@code since}, or all documents if the token is {@code null} or no longer usable
+     */
+    DocumentChanges changes(String orgId, String solutionId, String since);
+
+    /**
+     * @return version of the solution, which changes whenever any of its documents is written
+     */
+    String version(String orgId, String solutionId);
+
+    /**
+     * @return body of the document, or {@code null} if it does not exist
+     */
     ObjectNode retrieve(String orgId, String solutionId, String docId);
 
+    /**
+     * Retrieve the body of a document as it is stored, which is cheaper than {@link #retrieve} when it is only to be
+     * sent on.
+     *
+     * @return body of the document, or {@code null} if it does not exist
+     */
+    SerializedDocument retrieveSerialized(String orgId, String solutionId, String docId);
+
+    /**
+     * @return body of the document as it is stored, or {@code null} if it does not exist or has another type
+     */
+    SerializedDocument retrieveSerialized(String orgId, String solutionId, String docType, String docId);
+
+    /**
+     * Look up the revision of a document, without its body.
+     *
+     * @return current revision, or {@code 0} if the document does not exist
+     */
+    long revision(String orgId, String solutionId, String docId);
+
+    /**
+     * @return current revision, or {@code 0} if the document does not exist or has another type
+     */
+    long revision(String orgId, String solutionId, String docType, String docId);
+
     long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode doc) throws UpdateException;
 
     long update(String orgId, String solutionId, DocumentReference docRef, ObjectNode doc) throws UpdateException;
 
     void delete(String orgId, String solutionId, DocumentReference docRef) throws UpdateException;
 
+    /**
+     * Apply a batch of writes in order, each as if it was made on its own; a failed write does not affect the others.
+     * This is cheaper than making them one by one, since the batch is made durable at once. A write with an invalid id
+     * or type fails with {@link org.springframework.http.HttpStatus#BAD_REQUEST}.
+     *
+     * @return result of each write, in the same order
+     */
+    List<WriteResult> write(String orgId, String solutionId, List<DocumentWrite> writes);
+
 }
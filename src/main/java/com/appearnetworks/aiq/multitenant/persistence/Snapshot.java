@@ -0,0 +1,124 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of all documents, which replaces the log segments before the one it was taken at.
+ *
+ * The file holds a header with the first log segment to replay, then one section per solution with its documents,
+ * and ends with a CRC32 checksum of everything before it.
+ */
+final class Snapshot {
+
+    private static final int MAGIC = 0x41495153;
+    private static final byte VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte SOLUTION = 1;
+    private static final byte DOCUMENT = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    interface Loader {
+        void load(String orgId, String solutionId, String docId, String docType, long revision, byte[] body) throws IOException;
+    }
+
+    private Snapshot() { }
+
+    /**
+     * Write all documents in {@code index} to {@code file}, and force it to disk.
+     *
+     * @param firstSegment  first log segment to replay after loading this snapshot
+     * @return number of documents written
+     */
+    static long write(File file, long firstSegment, InMemoryPersistenceService index) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        long[] documents = {0};
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(firstSegment);
+
+            index.visit(new InMemoryPersistenceService.Visitor() {
+                @Override
+                public void solution(String orgId, String solutionId) throws IOException {
+                    out.writeByte(SOLUTION);
+                    out.writeUTF(orgId);
+                    out.writeUTF(solutionId);
+                }
+
+                @Override
+                public void document(DocumentReference document, SerializedDocument body) throws IOException {
+                    out.writeByte(DOCUMENT);
+                    out.writeUTF(document._id);
+                    out.writeUTF(document._type);
+                    out.writeLong(document._rev);
+                    out.writeInt(body.json.length);
+                    out.write(body.json);
+                    documents[0]++;
+                }
+            });
+
+            out.writeByte(END);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return documents[0];
+    }
+
+    /**
+     * @return first log segment to replay after this snapshot
+     */
+    static long read(File file, Loader loader) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Unknown snapshot format in " + file);
+            }
+            long firstSegment = in.readLong();
+
+            String orgId = null;
+            String solutionId = null;
+            while (true) {
+                byte type = in.readByte();
+                if (type == SOLUTION) {
+                    orgId = in.readUTF();
+                    solutionId = in.readUTF();
+                } else if (type == DOCUMENT && orgId != null) {
+                    String docId = in.readUTF();
+                    String docType = in.readUTF();
+                    long revision = in.readLong();
+                    byte[] body = new byte[in.readInt()];
+                    in.readFully(body);
+                    loader.load(orgId, solutionId, docId, docType, revision, body);
+                } else if (type == END) {
+                    long checksum = checked.getChecksum().getValue();
+                    if (in.readLong() != checksum) {
+                        throw new IOException("Checksum mismatch in snapshot " + file);
+                    }
+                    return firstSegment;
+                } else {
+                    throw new IOException("Corrupt snapshot " + file);
+                }
+            }
+        }
+    }
+}
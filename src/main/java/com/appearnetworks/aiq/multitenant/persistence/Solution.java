@@ -0,0 +1,678 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.BusinessDocument;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.SerializedDocument;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import org.springframework.http.HttpStatus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Documents of one solution.
+ *
+ * Every write gives the document the next number in the solution's change sequence, and the documents are also
+ * indexed by that number, so that the changes after a given number can be found without looking at the others.
+ * Deleted documents are kept as tombstones in the sequence, until there are more than {@link #TOMBSTONE_LIMIT}.
+ * The documents of each type are also kept in change order, so that those of one type are found without looking at
+ * the others, and counted, so that they are counted without either. A type is dropped when its last document is.
+ *
+ * Bodies are kept serialized, so that they are immutable and can be sent as they are. The reference of each revision
+ * is immutable too, so that listing hands out the stored ones instead of copies. They share the id of the revisions
+ * before them and the name of their type with the other documents of that type, so that each of those strings is held
+ * once.
+ *
+ * Each write is atomic for the document it touches, and reads take no lock.
+ *
+ * The documents may be spilled to a file when the solution has not been used for a while, and are loaded back the next
+ * time they are needed. The change sequence stays in memory, so that change tokens remain valid. Writes hold a shared
+ * lock, which spilling takes exclusively; reads which find the documents spilled wait for them to be loaded.
+ */
+final class Solution {
+
+    private static final int TOMBSTONE_LIMIT = 10000;
+
+    /**
+     * Estimated bytes taken by a document besides its body and id: its entry, reference and serialized body objects,
+     * and the nodes of the maps.
+     */
+    private static final int ENTRY_OVERHEAD = 288;
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private static final class Entry {
+        final DocumentReference reference;
+        final SerializedDocument body;
+        final long sequence;
+        final boolean deleted;
+
+        Entry(DocumentReference reference, SerializedDocument body, long sequence, boolean deleted) {
+            this.reference = reference;
+            this.body = body;
+            this.sequence = sequence;
+            this.deleted = deleted;
+        }
+    }
+
+    private static final class Documents {
+        final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+        final ConcurrentSkipListMap<Long, Entry> changes = new ConcurrentSkipListMap<>();
+        final ConcurrentMap<String, Type> types = new ConcurrentHashMap<>();
+        final AtomicLong footprint = new AtomicLong();
+
+        Type type(String name) {
+            return types.computeIfAbsent(name, Type::new);
+        }
+
+        /**
+         * Add a document to its type, under the lock of the type's mapping, so that it is not added to a type which
+         * is being removed.
+         */
+        void index(Entry entry) {
+            if (!entry.deleted) {
+                types.compute(entry.reference._type, (name, type) -> {
+                    if (type == null) {
+                        type = new Type(name);
+                    }
+                    if (type.documents.put(entry.sequence, entry) == null) {
+                        type.size.incrementAndGet();
+                    }
+                    return type;
+                });
+            }
+        }
+
+        /**
+         * Remove a document from its type, and the type once it has no documents left.
+         */
+        void unindex(Entry entry) {
+            if (!entry.deleted) {
+                types.computeIfPresent(entry.reference._type, (name, type) -> {
+                    if (type.documents.remove(entry.sequence, entry)) {
+                        type.size.decrementAndGet();
+                    }
+                    return (type.size.get() > 0) ? type : null;
+                });
+            }
+        }
+
+        // written since loaded from the spill file
+        volatile boolean modified;
+    }
+
+    /**
+     * Documents of one type by change number, without tombstones, their number, and the name shared by their
+     * references.
+     */
+    private static final class Type {
+        final String name;
+        final ConcurrentSkipListMap<Long, Entry> documents = new ConcurrentSkipListMap<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    private final File spillFile;
+    private final AtomicLong clock;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // null while spilled
+    private volatile Documents documents = new Documents();
+
+    // clock tick of the last access
+    private volatile long lastAccess;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger tombstones = new AtomicInteger();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    // guarded by documents.changes
+    private long sequence;
+
+    // all changes up to this one are in changes
+    private volatile long published;
+
+    // tombstones up to this one may have been pruned
+    private volatile long horizon;
+
+    /**
+     * Keep all documents in memory.
+     */
+    Solution() {
+        this(null, null);
+    }
+
+    /**
+     * @param spillFile  file to spill the documents to
+     * @param clock      ticks of the least recently used order, which a spilling caller advances
+     */
+    Solution(File spillFile, AtomicLong clock) {
+        this.spillFile = spillFile;
+        this.clock = clock;
+        if (clock != null) {
+            lastAccess = clock.get();
+        }
+    }
+
+    DocumentReference get(String docId) {
+        Entry entry = resident().entries.get(docId);
+        return (entry != null && !entry.deleted) ? entry.reference : null;
+    }
+
+    SerializedDocument body(String docId) {
+        Entry entry = resident().entries.get(docId);
+        return (entry != null && !entry.deleted) ? entry.body : null;
+    }
+
+    /**
+     * @return body of the document, or {@code null} if there is none of that type
+     */
+    SerializedDocument body(String docType, String docId) {
+        Entry entry = resident().entries.get(docId);
+        return (entry != null && !entry.deleted && entry.reference._type.equals(docType)) ? entry.body : null;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return live view of all documents, weakly consistent with concurrent writes
+     */
+    Collection<DocumentReference> documents() {
+        Documents documents = resident();
+        return new AbstractCollection<DocumentReference>() {
+            @Override
+            public Iterator<DocumentReference> iterator() {
+                return documents.entries.values().stream().filter(entry -> !entry.deleted).map(entry -> entry.reference).iterator();
+            }
+
+            @Override
+            public int size() {
+                return size.get();
+            }
+        };
+    }
+
+    /**
+     * @return live view of the documents of one type in change order, weakly consistent with concurrent writes
+     */
+    Collection<DocumentReference> documents(String docType) {
+        Type type = resident().types.get(docType);
+        if (type == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractCollection<DocumentReference>() {
+            @Override
+            public Iterator<DocumentReference> iterator() {
+                return type.documents.values().stream().map(entry -> entry.reference).iterator();
+            }
+
+            @Override
+            public int size() {
+                return type.size.get();
+            }
+        };
+    }
+
+    /**
+     * Visit all documents with their bodies, weakly consistent with concurrent writes. Spilled documents are read
+     * from their file without loading them.
+     */
+    void visit(InMemoryPersistenceService.Visitor visitor) throws IOException {
+        lock.readLock().lock();
+        try {
+            Documents documents = this.documents;
+            if (documents == null) {
+                read(name -> name, entry -> {
+                    if (!entry.deleted) {
+                        visitor.document(entry.reference, entry.body);
+                    }
+                });
+                return;
+            }
+            for (Entry entry : documents.entries.values()) {
+                if (!entry.deleted) {
+                    visitor.document(entry.reference, entry.body);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return estimated bytes taken by the documents in memory, {@code 0} while spilled
+     */
+    long footprint() {
+        Documents documents = this.documents;
+        return (documents != null) ? documents.footprint.get() : 0;
+    }
+
+    /**
+     * @return clock tick of the last access
+     */
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Write the documents to the spill file, unless it already holds them, and drop them from memory. Does nothing
+     * if the solution cannot spill, or is being written.
+     *
+     * @return bytes freed
+     */
+    long spill() throws IOException {
+        if (spillFile == null || !lock.writeLock().tryLock()) {
+            return 0;
+        }
+        try {
+            Documents documents = this.documents;
+            if (documents == null) {
+                return 0;
+            }
+            if (documents.modified || !spillFile.exists()) {
+                write(documents);
+            }
+            this.documents = null;
+            return documents.footprint.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the spill file, once the solution is no longer used.
+     */
+    void discard() {
+        if (spillFile != null && spillFile.exists() && !spillFile.delete()) {
+            spillFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the id or type is not valid
+     */
+    long insert(DocumentReference docRef, SerializedDocument body) throws UpdateException {
+        long initialRevision = body.revision;
+        BusinessDocument.validateId(docRef._id, "document id");
+        BusinessDocument.validateId(docRef._type, "document type");
+
+        boolean[] conflict = {false};
+        Documents documents = lockForWrite();
+        try {
+            documents.entries.compute(docRef._id, (id, current) -> {
+                if (current != null && !current.deleted) {
+                    conflict[0] = true;
+                    return current;
+                }
+                return record(documents, current, reference(documents, current, id, docRef._type, initialRevision), body, false);
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (conflict[0]) {
+            throw new UpdateException(HttpStatus.CONFLICT);
+        }
+
+        return initialRevision;
+    }
+
+    long update(DocumentReference docRef, SerializedDocument body) throws UpdateException {
+        long updatedRevision = body.revision;
+
+        boolean[] failed = {false};
+        Documents documents = lockForWrite();
+        try {
+            documents.entries.compute(docRef._id, (id, current) -> {
+                if (!matches(current, docRef)) {
+                    failed[0] = true;
+                    return current;
+                }
+                return record(documents, current, reference(documents, current, id, docRef._type, updatedRevision), body, false);
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (failed[0]) {
+            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+        }
+
+        return updatedRevision;
+    }
+
+    void delete(DocumentReference docRef) throws UpdateException {
+        boolean[] failed = {false};
+        Documents documents = lockForWrite();
+        try {
+            documents.entries.compute(docRef._id, (id, current) -> {
+                if (!matches(current, docRef)) {
+                    failed[0] = true;
+                    return current;
+                }
+                // the tombstone keeps the reference of the deleted revision
+                return record(documents, current, current.reference, null, true);
+            });
+
+            if (!failed[0] && tombstones.get() > TOMBSTONE_LIMIT) {
+                pruneTombstones(documents);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (failed[0]) {
+            throw new UpdateException(HttpStatus.PRECONDITION_FAILED);
+        }
+    }
+
+    /**
+     * Store a document as is, without checking its revision.
+     */
+    void put(DocumentReference docRef, SerializedDocument body) {
+        Documents documents = lockForWrite();
+        try {
+            documents.entries.compute(docRef._id, (id, current) ->
+                    record(documents, current, reference(documents, current, id, docRef._type, docRef._rev), body, false));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a document regardless of its revision.
+     */
+    void remove(String docId) {
+        Documents documents = lockForWrite();
+        try {
+            documents.entries.computeIfPresent(docId, (id, current) -> current.deleted
+                    ? current
+                    : record(documents, current, current.reference, null, true));
+
+            if (tombstones.get() > TOMBSTONE_LIMIT) {
+                pruneTombstones(documents);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of the last change
+     */
+    long published() {
+        return published;
+    }
+
+    /**
+     * @return deletions before this change may have been forgotten
+     */
+    long horizon() {
+        return horizon;
+    }
+
+    /**
+     * @return live view of documents inserted or updated in changes {@code (after, upTo]}
+     */
+    Iterable<DocumentReference> changed(long after, long upTo) {
+        ConcurrentSkipListMap<Long, Entry> changes = resident().changes;
+        return () -> changes.subMap(after, false, upTo, true).values().stream()
+                .filter(entry -> !entry.deleted)
+                .map(entry -> entry.reference)
+                .iterator();
+    }
+
+    /**
+     * @return documents deleted in changes {@code (after, upTo]}
+     */
+    List<DocumentReference> deleted(long after, long upTo) {
+        List<DocumentReference> deleted = new ArrayList<>();
+        for (Entry entry : resident().changes.subMap(after, false, upTo, true).values()) {
+            if (entry.deleted) {
+                deleted.add(entry.reference);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Add up to {@code limit} documents changed after {@code after} to {@code page}, in change order. A document
+     * written while paging moves to the end, so that it is returned again rather than skipped.
+     *
+     * @return change number to continue after, or {@code -1} if there are no more documents
+     */
+    long page(long after, int limit, List<DocumentReference> page) {
+        return page(resident().changes, after, limit, page);
+    }
+
+    /**
+     * Like {@link #page(long, int, List)}, for the documents of one type.
+     */
+    long page(String docType, long after, int limit, List<DocumentReference> page) {
+        Type type = resident().types.get(docType);
+        return (type != null) ? page(type.documents, after, limit, page) : -1;
+    }
+
+    private static long page(ConcurrentSkipListMap<Long, Entry> changes, long after, int limit, List<DocumentReference> page) {
+        long last = after;
+        for (Entry entry : changes.tailMap(after, false).values()) {
+            if (entry.deleted) {
+                continue;
+            }
+            if (page.size() == limit) {
+                return last;
+            }
+            page.add(entry.reference);
+            last = entry.sequence;
+        }
+        return -1;
+    }
+
+    private static boolean matches(Entry current, DocumentReference docRef) {
+        return current != null &&
+               !current.deleted &&
+               current.reference._rev == docRef._rev &&
+               current.reference._type.equals(docRef._type);
+    }
+
+    /**
+     * @return documents in memory, loaded from the spill file if needed
+     */
+    private Documents resident() {
+        if (clock != null) {
+            // only written once per tick, so that readers on other cores do not keep invalidating it
+            long now = clock.get();
+            if (lastAccess != now) {
+                lastAccess = now;
+            }
+        }
+
+        Documents documents = this.documents;
+        return (documents != null) ? documents : load();
+    }
+
+    /**
+     * Take the shared lock which keeps the documents from being spilled, once they are in memory. The caller must
+     * release it.
+     */
+    private Documents lockForWrite() {
+        while (true) {
+            Documents documents = resident();
+            lock.readLock().lock();
+            if (this.documents == documents) {
+                return documents;
+            }
+            // spilled in between
+            lock.readLock().unlock();
+        }
+    }
+
+    private Documents load() {
+        lock.writeLock().lock();
+        try {
+            Documents documents = this.documents;
+            if (documents != null) {
+                return documents;
+            }
+
+            Documents loaded = new Documents();
+            read(name -> loaded.type(name).name, entry -> {
+                loaded.entries.put(entry.reference._id, entry);
+                loaded.changes.put(entry.sequence, entry);
+                loaded.index(entry);
+                loaded.footprint.addAndGet(footprint(entry));
+            });
+            // those named only by tombstones
+            loaded.types.values().removeIf(type -> type.size.get() == 0);
+            this.documents = loaded;
+            return loaded;
+        } catch (IOException e) {
+            throw new PersistenceException("Could not load spilled documents from " + spillFile, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private interface EntryReader {
+        void entry(Entry entry) throws IOException;
+    }
+
+    /**
+     * Write all entries, tombstones included, in change order.
+     */
+    private void write(Documents documents) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE))) {
+            out.writeInt(documents.changes.size());
+            for (Entry entry : documents.changes.values()) {
+                out.writeUTF(entry.reference._id);
+                out.writeUTF(entry.reference._type);
+                out.writeLong(entry.reference._rev);
+                out.writeLong(entry.sequence);
+                out.writeBoolean(entry.deleted);
+                if (!entry.deleted) {
+                    out.writeLong(entry.body.revision);
+                    out.writeInt(entry.body.json.length);
+                    out.write(entry.body.json);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param typeNames  gives the name to share for the type of each document read
+     */
+    private void read(UnaryOperator<String> typeNames, EntryReader reader) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), BUFFER_SIZE))) {
+            for (int count = in.readInt(); count > 0; count--) {
+                DocumentReference reference = new DocumentReference(in.readUTF(), typeNames.apply(in.readUTF()), in.readLong());
+                long sequence = in.readLong();
+                boolean deleted = in.readBoolean();
+                SerializedDocument body = null;
+                if (!deleted) {
+                    long revision = in.readLong();
+                    byte[] json = new byte[in.readInt()];
+                    in.readFully(json);
+                    body = new SerializedDocument(revision, json);
+                }
+                reader.entry(new Entry(reference, body, sequence, deleted));
+            }
+        }
+    }
+
+    private static long footprint(Entry entry) {
+        return ENTRY_OVERHEAD + 2L * entry.reference._id.length() + ((entry.body != null) ? entry.body.json.length : 0);
+    }
+
+    /**
+     * @return reference with the id held by the current revision, if any, and the shared name of the type
+     */
+    private static DocumentReference reference(Documents documents, Entry current, String docId, String docType, long revision) {
+        return new DocumentReference((current != null) ? current.reference._id : docId, documents.type(docType).name, revision);
+    }
+
+    /**
+     * Give a document the next change number. Must be called while computing its entry, so that changes of the same
+     * document are recorded in order.
+     */
+    private Entry record(Documents documents, Entry previous, DocumentReference reference, SerializedDocument body, boolean deleted) {
+        Entry entry;
+        synchronized (documents.changes) {
+            entry = new Entry(reference, body, ++sequence, deleted);
+            documents.changes.put(entry.sequence, entry);
+            published = entry.sequence;
+        }
+        documents.index(entry);
+
+        long footprint = footprint(entry);
+        if (previous != null) {
+            documents.changes.remove(previous.sequence, previous);
+            documents.unindex(previous);
+            (previous.deleted ? tombstones : size).decrementAndGet();
+            footprint -= footprint(previous);
+        }
+        (deleted ? tombstones : size).incrementAndGet();
+        documents.footprint.addAndGet(footprint);
+        documents.modified = true;
+
+        return entry;
+    }
+
+    /**
+     * Forget the oldest half of the tombstones. The horizon is moved before any of them is removed, so that a reader
+     * who could have missed one of them finds out.
+     */
+    private void pruneTombstones(Documents documents) {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int excess = tombstones.get() - TOMBSTONE_LIMIT / 2;
+            List<Entry> pruned = new ArrayList<>();
+            for (Entry entry : documents.changes.values()) {
+                if (pruned.size() >= excess) {
+                    break;
+                }
+                if (entry.deleted) {
+                    pruned.add(entry);
+                }
+            }
+            if (pruned.isEmpty()) {
+                return;
+            }
+
+            horizon = pruned.get(pruned.size() - 1).sequence;
+            documents.modified = true;
+            for (Entry entry : pruned) {
+                if (documents.entries.remove(entry.reference._id, entry)) {
+                    documents.changes.remove(entry.sequence, entry);
+                    documents.footprint.addAndGet(-footprint(entry));
+                    tombstones.decrementAndGet();
+                }
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+}
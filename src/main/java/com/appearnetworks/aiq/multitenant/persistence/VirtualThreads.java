@@ -0,0 +1,98 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors which start a virtual thread per task, on a JDK which has them.
+ *
+ * They are looked up by reflection, so that the adapter still builds and runs on Java 8.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() { }
+
+    /**
+     * @param name   prefix of the names of the threads
+     * @param limit  maximum number of tasks running at once, further tasks are rejected
+     * @return a new executor, or {@code null} if this JDK has no virtual threads
+     */
+    static ExecutorService newExecutor(String name, int limit) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + '-', 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return new LimitedExecutor((ExecutorService) newExecutor.invoke(null, factory), limit);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reject tasks beyond a limit, since an executor which starts a thread per task has no queue to bound.
+     */
+    private static final class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService executor;
+        private final int limit;
+        private final Semaphore permits;
+
+        LimitedExecutor(ExecutorService executor, int limit) {
+            this.executor = executor;
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("More than " + limit + " tasks running");
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.appearnetworks.aiq.multitenant.persistence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link LogRecord}s, split in memory-mapped segment files of fixed size.
+ *
+ * Each record is framed by its length and a CRC32 checksum, so that a record torn by a crash is detected on replay
+ * and discarded. Appending only copies the record into the mapped segment; {@link #sync(long)} makes it durable, and
+ * lets one fsync cover every record appended by concurrent writers in the meantime.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+
+    interface Handler {
+        void apply(LogRecord record) throws IOException;
+    }
+
+    private final File directory;
+    private final int segmentSize;
+
+    // explicit locks rather than monitors, which would pin virtual threads to their carriers while they force the log
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+
+    private volatile Segment current;
+    private volatile long written;
+
+    // guarded by syncLock
+    private long durable;
+    private boolean syncing;
+
+    /**
+     * Open the log in {@code directory}, and replay all records in it from segment {@code firstSegment} on.
+     * Segments before {@code firstSegment} are deleted.
+     *
+     * @param segmentSize   size of each segment file in bytes, which is also the maximum record size
+     * @param firstSegment  first segment to replay, as returned by {@link #rollover()}
+     * @param handler       receives each record in the log, in the order they were appended
+     */
+    WriteAheadLog(File directory, int segmentSize, long firstSegment, Handler handler) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        deleteBefore(firstSegment);
+        File[] files = segmentFiles();
+
+        Segment last = null;
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = new Segment(files[i], segmentSize);
+            boolean clean = segment.replay(handler);
+            if (i < files.length - 1) {
+                segment.close();
+                if (!clean) {
+                    throw new PersistenceException("Corrupt record in log segment " + files[i]);
+                }
+            } else {
+                if (!clean) {
+                    LOGGER.warning("Discarding torn record at offset " + segment.buffer.position() + " in log segment " + files[i]);
+                }
+                // also after a clean end: bytes past it, left by an earlier run, must not be replayed once appends reach them
+                segment.clearRemaining();
+                last = segment;
+            }
+        }
+
+        current = (last != null) ? last : new Segment(segmentFile(Math.max(firstSegment, 1)), segmentSize);
+    }
+
+    /**
+     * @return {@code true} if a record of this size can be appended
+     */
+    boolean fits(byte[] payload) {
+        return HEADER_SIZE + payload.length <= segmentSize;
+    }
+
+    /**
+     * Append a record, without waiting for it to be durable.
+     *
+     * @return position to pass to {@link #sync(long)}
+     */
+    long append(byte[] payload) {
+        if (!fits(payload)) {
+            throw new IllegalArgumentException("Log record of " + payload.length + " bytes does not fit in a segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int checksum = (int) crc.getValue();
+
+        appendLock.lock();
+        try {
+            Segment segment = current;
+            if (segment.buffer.remaining() < HEADER_SIZE + payload.length) {
+                segment = roll();
+            }
+            segment.buffer.putInt(payload.length).putInt(checksum).put(payload);
+            written += HEADER_SIZE + payload.length;
+            return written;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until everything up to {@code position} is on disk.
+     *
+     * Only one thread at a time forces the log; threads arriving meanwhile wait for it, and are then usually covered
+     * by the next force without doing one of their own.
+     */
+    void sync(long position) {
+        while (true) {
+            long target;
+            Segment segment;
+            syncLock.lock();
+            try {
+                while (durable < position && syncing) {
+                    try {
+                        synced.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new PersistenceException("Interrupted while waiting for log sync", e);
+                    }
+                }
+                if (durable >= position) {
+                    return;
+                }
+                syncing = true;
+                // read written before current, see roll()
+                target = written;
+                segment = current;
+            } finally {
+                syncLock.unlock();
+            }
+
+            boolean forced = false;
+            try {
+                segment.buffer.force();
+                forced = true;
+            } finally {
+                syncLock.lock();
+                try {
+                    syncing = false;
+                    if (forced) {
+                        durable = Math.max(durable, target);
+                    }
+                    synced.signalAll();
+                } finally {
+                    syncLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return position of the last appended record
+     */
+    long position() {
+        return written;
+    }
+
+    /**
+     * Force the current segment and start appending to a new one.
+     *
+     * @return number of the new segment; all records appended before this call are in earlier segments
+     */
+    long rollover() {
+        appendLock.lock();
+        try {
+            return roll().number;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Delete segments before {@code segment}, which must not be the current one.
+     */
+    void deleteBefore(long segment) throws IOException {
+        for (File file : segmentFiles()) {
+            if (segmentNumber(file) < segment && !file.delete()) {
+                throw new IOException("Could not delete log segment " + file);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            current.buffer.force();
+            current.close();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * A full segment is forced before the next one becomes current, so a sync only ever needs to force the current one.
+     */
+    private Segment roll() {
+        Segment previous = current;
+        try {
+            previous.buffer.force();
+            previous.close();
+            current = new Segment(segmentFile(previous.number + 1), segmentSize);
+        } catch (IOException e) {
+            throw new PersistenceException("Could not create log segment " + (previous.number + 1), e);
+        }
+        return current;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%020d", number) + SUFFIX);
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long segmentNumber(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static final class Segment {
+        final long number;
+        final RandomAccessFile file;
+        final MappedByteBuffer buffer;
+
+        Segment(File path, int size) throws IOException {
+            this.number = segmentNumber(path);
+            this.file = new RandomAccessFile(path, "rw");
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Replay records from the start of the segment, and leave the buffer positioned after the last valid one.
+         *
+         * @return {@code false} if the segment ends with a torn or corrupt record
+         */
+        boolean replay(Handler handler) throws IOException {
+            ByteBuffer records = buffer.duplicate();
+            while (records.remaining() >= HEADER_SIZE) {
+                int start = records.position();
+                int length = records.getInt();
+                if (length == 0) {
+                    buffer.position(start);
+                    return true;
+                }
+                int checksum = records.getInt();
+                if (length < 0 || length > records.remaining()) {
+                    buffer.position(start);
+                    return false;
+                }
+                byte[] payload = new byte[length];
+                records.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    buffer.position(start);
+                    return false;
+                }
+                handler.apply(LogRecord.decode(payload));
+            }
+            buffer.position(records.position());
+            return true;
+        }
+
+        /**
+         * Zero the rest of the segment, so that no leftovers of a torn record or of an earlier run can be mistaken for
+         * a valid one. Only forces the segment if there was anything to clear.
+         */
+        void clearRemaining() {
+            ByteBuffer rest = buffer.duplicate();
+            boolean dirty = false;
+            while (rest.hasRemaining()) {
+                if (rest.get() != 0) {
+                    rest.put(rest.position() - 1, (byte) 0);
+                    dirty = true;
+                }
+            }
+            if (dirty) {
+                buffer.force();
+            }
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
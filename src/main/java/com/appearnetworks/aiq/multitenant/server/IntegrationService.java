@@ -1,17 +1,27 @@
 package com.appearnetworks.aiq.multitenant.server;
 
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.client.support.HttpRequestWrapper;
 import org.springframework.http.converter.HttpMessageConversionException;
 import org.springframework.stereotype.Component;
@@ -20,16 +30,39 @@ import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client of the platform.
+ *
+ * All calls share one pool of keep-alive connections, so that they do not pay for connection setup every time, and
+ * have timeouts, so that a slow platform cannot hold a thread forever. Calls which need authorization get the current
+ * access token added when they are sent.
+ *
+ * Only one request for an access token is made at a time, and callers which need a token meanwhile wait for that one.
+ * A token which expires is refreshed in the background before it does, so that calls do not wait for it.
+ */
 @Component
 public class IntegrationService {
+    private static final Logger LOGGER = Logger.getLogger(IntegrationService.class.getName());
+
     private static final String ROOT_LINK_CACHE_KEY = "link_";
     private static final String ACCESS_TOKEN_CACHE_KEY = "token";
     private static final String INTEGRATION_LINK_CACHE_KEY = "link_integration_";
@@ -38,10 +71,32 @@ public class IntegrationService {
 
     private static final String AUTHORIZATION_HEADER = "Authorization";
 
+    /**
+     * Part of the lifetime of a token after which it is refreshed.
+     */
+    private static final double REFRESH_AFTER = 0.8;
+
+    private static final long REFRESH_RETRY_SECONDS = 30;
+
     private final Map<String, Object> cache = new ConcurrentHashMap<>();
 
     private ObjectMapper mapper = new ObjectMapper();
 
+    @Autowired
+    private Metrics metrics;
+
+    private final Map<HttpMethod, Metrics.Timer> serverTimers = new ConcurrentHashMap<>();
+
+    private final AtomicReference<CompletableFuture<String>> tokenRequest = new AtomicReference<>();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "token-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> scheduledRefresh;
+
     @Value("${aiq.url}")
     private String aiqUrl;
 
@@ -57,10 +112,63 @@ public class IntegrationService {
     @Value("${aiq.scope:integration}")
     private String aiqScope;
 
+    @Value("${aiq.http.maxconnections:20}")
+    private int maxConnections;
+
+    @Value("${aiq.http.connecttimeout:5000}")
+    private int connectTimeout;
+
+    @Value("${aiq.http.readtimeout:30000}")
+    private int readTimeout;
+
+    private CloseableHttpClient httpClient;
+    private RestTemplate restTemplate;
+    private RestTemplate restTemplateWithAuth;
+
+    @PostConstruct
+    public void createClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        // all calls go to the same platform
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(connectTimeout)
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient) {
+            /**
+             * The factory otherwise puts a request config of its own in every context, which overrides the default
+             * one of the client, and has no timeout for leasing a connection from the pool.
+             */
+            @Override
+            protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+                HttpClientContext context = HttpClientContext.create();
+                context.setRequestConfig(requestConfig);
+                return context;
+            }
+        };
+        restTemplate = new RestTemplate(requestFactory);
+        restTemplate.setInterceptors(Collections.<ClientHttpRequestInterceptor>singletonList(new MeteringInterceptor()));
+        restTemplateWithAuth = new RestTemplate(requestFactory);
+        restTemplateWithAuth.setInterceptors(Arrays.asList(new MeteringInterceptor(), new HeaderHttpRequestInterceptor()));
+    }
+
+    @PreDestroy
+    public void closeClient() throws IOException {
+        refresher.shutdownNow();
+        httpClient.close();
+    }
+
     private void fetchOrgRootMenu() {
         try {
             OrgRootMenu
-                    orgRootMenu = new RestTemplate().getForObject(aiqUrl + "?orgName=" + aiqOrgName, OrgRootMenu.class);
+                    orgRootMenu = restTemplate.getForObject(aiqUrl + "?orgName=" + aiqOrgName, OrgRootMenu.class);
 
             URI baseURL = URI.create(aiqUrl);
 
@@ -78,19 +186,78 @@ public class IntegrationService {
     }
 
     private String fetchUserToken() {
-        if (!cache.containsKey(ACCESS_TOKEN_CACHE_KEY)) {
-            fetchAccessToken();
-        }
-        return (String) cache.get(ACCESS_TOKEN_CACHE_KEY);
+        String token = (String) cache.get(ACCESS_TOKEN_CACHE_KEY);
+        return (token != null) ? token : refreshAccessToken(null);
     }
 
     private URI fetchIntegrationLink(String link) {
         if (!cache.containsKey(INTEGRATION_LINK_CACHE_KEY + link)) {
-            fetchAccessToken();
+            refreshAccessToken((String) cache.get(ACCESS_TOKEN_CACHE_KEY));
         }
         return (URI) cache.get(INTEGRATION_LINK_CACHE_KEY + link);
     }
 
+    /**
+     * Fetch a new access token to replace {@code seen}, or wait for the request already made by another thread. Does
+     * not fetch one if another thread has already replaced it.
+     *
+     * @param seen  the token the caller found, or {@code null} if there was none
+     */
+    private String refreshAccessToken(String seen) {
+        while (true) {
+            CompletableFuture<String> request = tokenRequest.get();
+            if (request != null) {
+                try {
+                    return request.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            request = new CompletableFuture<>();
+            if (tokenRequest.compareAndSet(null, request)) {
+                try {
+                    // the request of another thread may have completed since the caller looked
+                    String token = (String) cache.get(ACCESS_TOKEN_CACHE_KEY);
+                    if (token == null || token.equals(seen)) {
+                        token = fetchAccessToken();
+                    }
+                    request.complete(token);
+                    return token;
+                } catch (RuntimeException | Error e) {
+                    request.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    tokenRequest.set(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refresh the access token in the background after the given delay, unless it has been replaced by then.
+     */
+    private synchronized void scheduleRefresh(String token, long delay, TimeUnit unit) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        scheduledRefresh = refresher.schedule(() -> {
+            try {
+                refreshAccessToken(token);
+            } catch (RuntimeException e) {
+                // the current token is kept until it is rejected
+                LOGGER.log(Level.WARNING, "Could not refresh access token, retrying in " + REFRESH_RETRY_SECONDS + " s", e);
+                scheduleRefresh(token, REFRESH_RETRY_SECONDS, TimeUnit.SECONDS);
+            }
+        }, delay, unit);
+    }
+
     private URI fetchRootLink(String link) {
         if (!cache.containsKey(ROOT_LINK_CACHE_KEY + link)) {
             fetchOrgRootMenu();
@@ -98,7 +265,7 @@ public class IntegrationService {
         return (URI) cache.get(ROOT_LINK_CACHE_KEY + link);
     }
 
-    private void fetchAccessToken() {
+    private String fetchAccessToken() {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
 
@@ -107,14 +274,20 @@ public class IntegrationService {
 
         try {
             URI baseURL = fetchRootLink("token");
-            AccessToken accessToken = new RestTemplate().postForObject(baseURL, request, AccessToken.class);
-
-            cache.put(ACCESS_TOKEN_CACHE_KEY, accessToken.getAccess_token());
+            AccessToken accessToken = restTemplate.postForObject(baseURL, request, AccessToken.class);
 
             for (Iterator<Map.Entry<String, JsonNode>> iterator = accessToken.getLinks().fields(); iterator.hasNext(); ) {
                 Map.Entry<String, JsonNode> entry = iterator.next();
                 cache.put(INTEGRATION_LINK_CACHE_KEY + entry.getKey(), baseURL.resolve(entry.getValue().textValue()));
             }
+            // after the links, so that a caller who finds the token also finds them
+            cache.put(ACCESS_TOKEN_CACHE_KEY, accessToken.getAccess_token());
+
+            long expiresIn = parseExpiresIn(accessToken.getExpires_in());
+            if (expiresIn > 0) {
+                scheduleRefresh(accessToken.getAccess_token(), (long) (expiresIn * REFRESH_AFTER * 1000), TimeUnit.MILLISECONDS);
+            }
+            return accessToken.getAccess_token();
         } catch (HttpStatusCodeException e) {
             throw reportHttpError(e);
         } catch (ResourceAccessException e) {
@@ -124,21 +297,41 @@ public class IntegrationService {
         }
     }
 
-    private void invalidateUserToken() {
-        cache.remove(ACCESS_TOKEN_CACHE_KEY);
+    /**
+     * @return lifetime of a token in seconds, or {@code 0} if it is not known
+     */
+    private static long parseExpiresIn(String expiresIn) {
+        if (expiresIn == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(expiresIn.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Drop a token rejected by the platform, unless another thread has already replaced it.
+     */
+    private void invalidateUserToken(String rejected) {
+        cache.remove(ACCESS_TOKEN_CACHE_KEY, rejected);
     }
 
     private String authorizationValue(String token) {
         return "Bearer " + token;
     }
 
-    public void register(String integrationURL, String integrationPassword) {
+    /**
+     * @return {@code false} if the server does not know the adapter
+     */
+    public boolean register(String integrationURL, String integrationPassword) {
         ObjectNode request = mapper.valueToTree(new RegisterAdapterRequest(integrationURL, integrationPassword));
         try {
-            doPut(fetchIntegrationLink(ADAPTER).toString(), request);
+            return doPut(fetchIntegrationLink(ADAPTER).toString(), request);
         } catch (UnauthorizedException e) {
             if (fetchUserToken() != null)
-                doPut(fetchIntegrationLink(ADAPTER).toString(), request);
+                return doPut(fetchIntegrationLink(ADAPTER).toString(), request);
             else
                 throw e;
         }
@@ -157,7 +350,7 @@ public class IntegrationService {
 
     private boolean doPut(String uri, Object data, Object... parameters) {
         try {
-            getRestTemplateWithAuth().put(uri, data, parameters);
+            restTemplateWithAuth.put(uri, data, parameters);
             return true;
         } catch (HttpStatusCodeException e) {
             switch (e.getStatusCode()) {
@@ -165,7 +358,6 @@ public class IntegrationService {
                     return false;
 
                 case UNAUTHORIZED:
-                    invalidateUserToken();
                     throw new UnauthorizedException();
 
                 default:
@@ -180,7 +372,7 @@ public class IntegrationService {
 
     private boolean delete(String url, Object... parameters) {
         try {
-            getRestTemplateWithAuth().delete(url, parameters);
+            restTemplateWithAuth.delete(url, parameters);
             return true;
         } catch (HttpStatusCodeException e) {
             switch (e.getStatusCode()) {
@@ -188,7 +380,6 @@ public class IntegrationService {
                     return false;
 
                 case UNAUTHORIZED:
-                    invalidateUserToken();
                     throw new UnauthorizedException();
 
                 default:
@@ -201,17 +392,6 @@ public class IntegrationService {
         }
     }
 
-    private RestTemplate getRestTemplateWithAuth() {
-        ClientHttpRequestInterceptor interceptor = new HeaderHttpRequestInterceptor(fetchUserToken());
-        List<ClientHttpRequestInterceptor> interceptors = new ArrayList<>();
-        interceptors.add(interceptor);
-
-        RestTemplate restTemplate = new RestTemplate();
-        restTemplate.setInterceptors(interceptors);
-
-        return restTemplate;
-    }
-
     private RuntimeException reportHttpError(HttpStatusCodeException e) {
         if (e.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE)
             return new ServerUnavailableException();
@@ -219,20 +399,48 @@ public class IntegrationService {
             return new ServerException(e.getStatusCode(), e.getResponseBodyAsString());
     }
 
-    class HeaderHttpRequestInterceptor implements ClientHttpRequestInterceptor {
-        private final String token;
+    /**
+     * Record the latency of a call, including fetching an access token for it.
+     */
+    class MeteringInterceptor implements ClientHttpRequestInterceptor {
+        @Override
+        public ClientHttpResponse intercept(HttpRequest request, byte[] body,
+                                            ClientHttpRequestExecution execution) throws IOException {
 
-        public HeaderHttpRequestInterceptor(String token) {
-            this.token = token;
+            Metrics.Timer timer = serverTimers.get(request.getMethod());
+            if (timer == null) {
+                timer = metrics.timer(Metrics.SERVER, "method", request.getMethod().name());
+                serverTimers.putIfAbsent(request.getMethod(), timer);
+            }
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                ClientHttpResponse response = execution.execute(request, body);
+                error = response.getRawStatusCode() >= HttpStatus.INTERNAL_SERVER_ERROR.value();
+                return response;
+            } finally {
+                timer.record(start, error);
+            }
         }
+    }
 
+    /**
+     * Add the current access token to a request, fetching one if there is none, and drop that token if the platform
+     * rejects it.
+     */
+    class HeaderHttpRequestInterceptor implements ClientHttpRequestInterceptor {
         @Override
         public ClientHttpResponse intercept(HttpRequest request, byte[] body,
                                             ClientHttpRequestExecution execution) throws IOException {
 
+            String token = fetchUserToken();
             HttpRequestWrapper requestWrapper = new HttpRequestWrapper(request);
             requestWrapper.getHeaders().add(AUTHORIZATION_HEADER, authorizationValue(token));
-            return execution.execute(requestWrapper, body);
+            ClientHttpResponse response = execution.execute(requestWrapper, body);
+            if (response.getRawStatusCode() == HttpStatus.UNAUTHORIZED.value()) {
+                invalidateUserToken(token);
+            }
+            return response;
         }
     }
 }
@@ -0,0 +1,85 @@
+package com.appearnetworks.aiq;
+
+import com.appearnetworks.aiq.multitenant.ServerRegistrator;
+import com.appearnetworks.aiq.multitenant.server.IntegrationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServerRegistratorTest {
+
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    private ServerRegistrator serverRegistrator;
+
+    @Before
+    public void setup() throws Exception {
+        serverRegistrator = new ServerRegistrator();
+        ReflectionTestUtils.setField(serverRegistrator, "integrationUrl", "http://localhost/aiq/integration/");
+        ReflectionTestUtils.setField(serverRegistrator, "reregisterInterval", 3600L);
+        ReflectionTestUtils.setField(serverRegistrator, "maxRetryDelay", 300L);
+        ReflectionTestUtils.setField(serverRegistrator, "integrationService", new IntegrationService() {
+            @Override
+            public boolean register(String integrationURL, String integrationPassword) {
+                registrations.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public void unregister() {
+            }
+        });
+        serverRegistrator.register();
+        awaitRegistrations(1);
+        // until the next registration is scheduled
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((ScheduledFuture<?>) ReflectionTestUtils.getField(serverRegistrator, "scheduledRegistration")).getDelay(TimeUnit.SECONDS) < 60
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(serverRegistrator.isRegistered());
+    }
+
+    @After
+    public void teardown() {
+        serverRegistrator.unregister();
+    }
+
+    @Test
+    public void reregisterAtMostOncePerInterval() throws Exception {
+        // as if the last registration was long ago
+        ReflectionTestUtils.setField(serverRegistrator, "lastAttempt", 0L);
+
+        Thread[] clients = new Thread[4];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    serverRegistrator.reregister();
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        awaitRegistrations(2);
+        Thread.sleep(200);
+        assertEquals(2, registrations.get());
+    }
+
+    private void awaitRegistrations(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (registrations.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, registrations.get());
+    }
+}
@@ -0,0 +1,116 @@
+package com.appearnetworks.aiq;
+
+import com.appearnetworks.aiq.multitenant.ServerRegistrator;
+import com.appearnetworks.aiq.multitenant.WebConfig;
+import com.appearnetworks.aiq.multitenant.integration.IntegrationProtocol;
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.test.web.servlet.setup.StandaloneMockMvcBuilder;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.handler.MappedInterceptor;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class WebConfigTest {
+
+    private static final byte[] CREDENTIALS = "integration:secrets".getBytes(StandardCharsets.UTF_8);
+    private static final String ENCODED = encode("integration:secrets");
+
+    @Test
+    public void correctCredentials() {
+        assertTrue(WebConfig.matches("Basic " + ENCODED, CREDENTIALS));
+        assertTrue(WebConfig.matches("basic " + ENCODED, CREDENTIALS));
+    }
+
+    @Test
+    public void nonCanonicalEncoding() {
+        assertTrue(ENCODED.endsWith("="));
+        assertTrue(WebConfig.matches("Basic " + ENCODED.substring(0, ENCODED.length() - 1), CREDENTIALS));
+        assertTrue(WebConfig.matches("Basic " + ENCODED + "=", CREDENTIALS));
+        assertTrue(WebConfig.matches("Basic " + ENCODED + " ", CREDENTIALS));
+    }
+
+    @Test
+    public void wrongPassword() {
+        assertFalse(WebConfig.matches("Basic " + encode("integration:secreTs"), CREDENTIALS));
+    }
+
+    @Test
+    public void differentLength() {
+        assertFalse(WebConfig.matches("Basic " + encode("integration:secrets2"), CREDENTIALS));
+        assertFalse(WebConfig.matches("Basic " + encode("integration:"), CREDENTIALS));
+        assertFalse(WebConfig.matches("Basic ", CREDENTIALS));
+    }
+
+    @Test
+    public void missingScheme() {
+        assertFalse(WebConfig.matches(ENCODED, CREDENTIALS));
+        assertFalse(WebConfig.matches("Basic" + ENCODED, CREDENTIALS));
+        assertFalse(WebConfig.matches("Basic  " + ENCODED, CREDENTIALS));
+    }
+
+    @Test
+    public void malformedBase64() {
+        String malformed = "!" + ENCODED.substring(1);
+        assertFalse(WebConfig.matches("Basic " + malformed, CREDENTIALS));
+        assertFalse(WebConfig.matches("Basic ====", CREDENTIALS));
+    }
+
+    @Test
+    public void missingHeader() {
+        assertFalse(WebConfig.matches(null, CREDENTIALS));
+    }
+
+    @Test
+    public void tenantMetricsOnlyForAuthorizedRequests() throws Exception {
+        ServerRegistrator serverRegistrator = new ServerRegistrator();
+        ReflectionTestUtils.setField(serverRegistrator, "credentials", CREDENTIALS);
+        Metrics metrics = new Metrics();
+        WebConfig webConfig = new WebConfig();
+        ReflectionTestUtils.setField(webConfig, "serverRegistrator", serverRegistrator);
+        ReflectionTestUtils.setField(webConfig, "metrics", metrics);
+
+        StandaloneMockMvcBuilder builder = MockMvcBuilders.standaloneSetup(new IntegrationProtocol());
+        Registry registry = new Registry();
+        webConfig.addInterceptors(registry);
+        for (Object interceptor : registry.interceptors()) {
+            MappedInterceptor mapped = (MappedInterceptor) interceptor;
+            builder.addMappedInterceptors(mapped.getPathPatterns(), mapped.getInterceptor());
+        }
+        MockMvc mockMvc = builder.build();
+
+        mockMvc.perform(get("/aiq/integration/unknown/solution/heartbeat"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/aiq/integration/appear/solution/heartbeat").header("Authorization", "Basic " + ENCODED))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/aiq/integration/appear/solution/heartbeat").header("Authorization", "Basic " + ENCODED))
+                .andExpect(status().isOk());
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("aiq_request_seconds_count{endpoint=\"heartbeat\"} 3\n"));
+        assertTrue(text, text.contains("aiq_tenant_request_seconds_count{endpoint=\"heartbeat\",org=\"appear\",solution=\"solution\"} 2\n"));
+        assertFalse(text, text.contains("org=\"unknown\""));
+    }
+
+    private static String encode(String credentials) {
+        return Base64.encodeBase64String(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Registry extends InterceptorRegistry {
+        List<Object> interceptors() {
+            return getInterceptors();
+        }
+    }
+}
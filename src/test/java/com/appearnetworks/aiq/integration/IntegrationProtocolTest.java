@@ -0,0 +1,621 @@
+package com.appearnetworks.aiq.integration;
+
+import com.appearnetworks.aiq.multitenant.ProtocolConstants;
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.IntegrationProtocol;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.persistence.AttachmentStore;
+import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.PersistenceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultHandler;
+import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class IntegrationProtocolTest {
+
+    private static final String DOC_TYPE = "docType";
+    private static final String BASE = "/aiq/integration/appear/solution";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private PersistenceService persistenceService;
+    private IntegrationProtocol integrationProtocol;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setup() throws Exception {
+        persistenceService = new InMemoryPersistenceService();
+        integrationProtocol = new IntegrationProtocol();
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceService", persistenceService);
+        // requests complete before they return, so that there is no need to wait for them
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", (Executor) Runnable::run);
+        ReflectionTestUtils.setField(integrationProtocol, "completionExecutor", (Executor) Runnable::run);
+        ReflectionTestUtils.setField(integrationProtocol, "attachmentStore", new AttachmentStore(persistenceService, folder.newFolder(), 1024));
+        ReflectionTestUtils.setField(integrationProtocol, "requestTimeout", 1000L);
+        mockMvc = MockMvcBuilders.standaloneSetup(integrationProtocol).build();
+    }
+
+    @Test
+    public void listEmpty() throws Exception {
+        perform(get(BASE + "/datasync"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/json;charset=UTF-8"))
+                .andExpect(content().string("{\"documentReferences\":[]}"));
+    }
+
+    @Test
+    public void listDocuments() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(get(BASE + "/datasync"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"docId\",\"_type\":\"docType\",\"_rev\":1}]}"));
+    }
+
+    @Test
+    public void listChanges() throws Exception {
+        long revision = persistenceService.insert("appear", "solution", new DocumentReference("deleted", DOC_TYPE, 0), mapper.createObjectNode());
+        String token = persistenceService.changes("appear", "solution", null).token;
+        persistenceService.delete("appear", "solution", new DocumentReference("deleted", DOC_TYPE, revision));
+        persistenceService.insert("appear", "solution", new DocumentReference("inserted", DOC_TYPE, 0), mapper.createObjectNode());
+        String newToken = persistenceService.changes("appear", "solution", token).token;
+
+        perform(get(BASE + "/datasync").param("since", token))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"inserted\",\"_type\":\"docType\",\"_rev\":1}]," +
+                                            "\"deletedReferences\":[{\"_id\":\"deleted\",\"_type\":\"docType\",\"_rev\":1}]," +
+                                            "\"token\":\"" + newToken + "\",\"full\":false}"));
+    }
+
+    @Test
+    public void listPages() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("doc1", DOC_TYPE, 0), mapper.createObjectNode());
+        persistenceService.insert("appear", "solution", new DocumentReference("doc2", DOC_TYPE, 0), mapper.createObjectNode());
+        String cursor = persistenceService.list("appear", "solution", null, 1).cursor;
+
+        perform(get(BASE + "/datasync").param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"doc1\",\"_type\":\"docType\",\"_rev\":1}]," +
+                                            "\"cursor\":\"" + cursor + "\"}"));
+
+        perform(get(BASE + "/datasync").param("limit", "1").param("cursor", cursor))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"doc2\",\"_type\":\"docType\",\"_rev\":1}]}"));
+    }
+
+    @Test
+    public void listDocumentsOfType() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("doc1", DOC_TYPE, 0), mapper.createObjectNode());
+        String token = persistenceService.changes("appear", "solution", null).token;
+        persistenceService.insert("appear", "solution", new DocumentReference("other", "otherType", 0), mapper.createObjectNode());
+        persistenceService.insert("appear", "solution", new DocumentReference("doc2", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(get(BASE + "/datasync").param("docType", DOC_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"doc1\",\"_type\":\"docType\",\"_rev\":1}," +
+                                            "{\"_id\":\"doc2\",\"_type\":\"docType\",\"_rev\":1}]}"));
+
+        perform(get(BASE + "/datasync").param("docType", "otherType").param("limit", "10"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"other\",\"_type\":\"otherType\",\"_rev\":1}]}"));
+
+        String newToken = persistenceService.changes("appear", "solution", token).token;
+        perform(get(BASE + "/datasync").param("docType", DOC_TYPE).param("since", token))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documentReferences\":[{\"_id\":\"doc2\",\"_type\":\"docType\",\"_rev\":1}]," +
+                                            "\"deletedReferences\":[],\"token\":\"" + newToken + "\",\"full\":false}"));
+    }
+
+    @Test
+    public void listPagesBadRequest() throws Exception {
+        perform(get(BASE + "/datasync").param("limit", "0"))
+                .andExpect(status().isBadRequest());
+        perform(get(BASE + "/datasync").param("cursor", "garbage"))
+                .andExpect(status().isBadRequest());
+        perform(get(BASE + "/datasync").param("limit", "1").param("cursor", "garbage"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void listNotModified() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+        String etag = perform(get(BASE + "/datasync"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        perform(get(BASE + "/datasync").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag))
+                .andExpect(content().string(""));
+
+        persistenceService.update("appear", "solution", new DocumentReference("docId", DOC_TYPE, 1), mapper.createObjectNode());
+        perform(get(BASE + "/datasync").header("If-None-Match", etag))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void getDocumentNotModified() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/docId").header("If-None-Match", "\"0\", W/\"1\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"1\""))
+                .andExpect(content().string(""));
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/docId").header("If-None-Match", "\"0\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/missing").header("If-None-Match", "*"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void getDocumentOfOtherType() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(get(BASE + "/datasync/otherType/docId"))
+                .andExpect(status().isNotFound());
+
+        perform(get(BASE + "/datasync/otherType/docId").header("If-None-Match", "\"1\""))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void insertAndGetDocument() throws Exception {
+        ObjectNode document = mapper.createObjectNode();
+        document.put("data", "FOO");
+
+        perform(put(BASE + "/datasync/" + DOC_TYPE + "/docId")
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content(mapper.writeValueAsBytes(document)))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/docId"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1\""))
+                .andExpect(content().contentType("application/json;charset=UTF-8"))
+                .andExpect(content().string("{\"data\":\"FOO\",\"_rev\":1}"));
+    }
+
+    @Test
+    public void writeDocuments() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("updated", DOC_TYPE, 0), mapper.createObjectNode());
+        persistenceService.insert("appear", "solution", new DocumentReference("deleted", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(post(BASE + "/datasync")
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"documents\":[" +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"inserted\",\"body\":{\"data\":\"FOO\"}}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"updated\",\"_rev\":1,\"body\":{\"data\":\"BAR\"}}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"deleted\",\"_rev\":1,\"_deleted\":true}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"missing\",\"_rev\":1,\"body\":{}}]}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"results\":[" +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"inserted\",\"status\":201,\"etag\":\"\\\"1\\\"\"}," +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"updated\",\"status\":204,\"etag\":\"\\\"2\\\"\"}," +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"deleted\",\"status\":204}," +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"missing\",\"status\":412}]}"));
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/updated"))
+                .andExpect(content().string("{\"data\":\"BAR\",\"_rev\":2}"));
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/deleted"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void writeDocumentsBadRequest() throws Exception {
+        perform(post(BASE + "/datasync")
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"documents\":[{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"deleted\",\"_deleted\":true}]}"))
+                .andExpect(status().isBadRequest());
+
+        // nothing is written if any id is invalid
+        perform(post(BASE + "/datasync")
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"documents\":[{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"first\",\"body\":{}}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"a b\",\"body\":{}}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"last\",\"body\":{}}]}"))
+                .andExpect(status().isBadRequest());
+        assertEquals(0, persistenceService.list("appear", "solution").size());
+    }
+
+    @Test
+    public void getDocuments() throws Exception {
+        ObjectNode document = mapper.createObjectNode();
+        document.put("data", "FOO");
+        persistenceService.insert("appear", "solution", new DocumentReference("doc1", DOC_TYPE, 0), document);
+        persistenceService.insert("appear", "solution", new DocumentReference("doc2", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(post(BASE + "/datasync/_get")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"documentReferences\":[" +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"doc1\"}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"missing\"}," +
+                                         "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"doc2\"}]}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"documents\":[" +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"doc1\",\"_rev\":1,\"body\":{\"data\":\"FOO\",\"_rev\":1}}," +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"missing\",\"missing\":true}," +
+                                            "{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"doc2\",\"_rev\":1,\"body\":{\"_rev\":1}}]}"));
+
+        perform(post(BASE + "/datasync/_get")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"documentReferences\":[{\"_id\":\"doc1\"}]}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void insertGetAndDeleteAttachment() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+        String attachment = BASE + "/datasync/" + DOC_TYPE + "/docId/photo";
+
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content("PNG".getBytes()))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        perform(get(attachment))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1\""))
+                .andExpect(header().string("Content-Length", "3"))
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(content().string("PNG"));
+
+        perform(get(attachment).header("If-None-Match", "\"1\""))
+                .andExpect(status().isNotModified());
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/docId"))
+                .andExpect(content().string("{\"_rev\":2,\"_attachments\":{\"photo\":{\"_rev\":1,\"content_type\":\"image/png\"}}}"));
+
+        perform(delete(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .header(ProtocolConstants.IF_MATCH, "\"1\""))
+                .andExpect(status().isNoContent());
+
+        perform(get(attachment))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void insertAttachmentTooLarge() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+
+        perform(put(BASE + "/datasync/" + DOC_TYPE + "/docId/photo")
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content(new byte[1025]))
+                .andExpect(status().isRequestEntityTooLarge());
+    }
+
+    @Test
+    public void getAttachmentRange() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+        String attachment = BASE + "/datasync/" + DOC_TYPE + "/docId/photo";
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content("0123456789".getBytes()))
+                .andExpect(status().isCreated());
+
+        perform(get(attachment).header("Range", "bytes=2-4"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().string("Content-Range", "bytes 2-4/10"))
+                .andExpect(header().string("Content-Length", "3"))
+                .andExpect(content().string("234"));
+
+        perform(get(attachment).header("Range", "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string("789"));
+
+        perform(get(attachment).header("Range", "bytes=10-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */10"));
+
+        // the client holds a part of another revision
+        perform(get(attachment).header("Range", "bytes=2-4").header("If-Range", "\"7\""))
+                .andExpect(status().isOk())
+                .andExpect(content().string("0123456789"));
+    }
+
+    @Test
+    public void insertAttachmentInChunks() throws Exception {
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+        String attachment = BASE + "/datasync/" + DOC_TYPE + "/docId/photo";
+
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .header("Content-Range", "bytes 0-4/10")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content("01234".getBytes()))
+                .andExpect(status().is(308))
+                .andExpect(header().string("Range", "bytes=0-4"));
+
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .header("Content-Range", "bytes */10")
+                                .contentType(MediaType.IMAGE_PNG))
+                .andExpect(status().is(308))
+                .andExpect(header().string("Range", "bytes=0-4"));
+
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .header("Content-Range", "bytes 7-9/10")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content("789".getBytes()))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Range", "bytes=0-4"));
+
+        perform(put(attachment)
+                                .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                .header("Content-Range", "bytes 5-9/10")
+                                .contentType(MediaType.IMAGE_PNG)
+                                .content("56789".getBytes()))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        perform(get(attachment))
+                .andExpect(status().isOk())
+                .andExpect(content().string("0123456789"));
+    }
+
+    @Test
+    public void rejectedWhenBusy() throws Exception {
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", (Executor) runnable -> {
+            throw new RejectedExecutionException();
+        });
+
+        perform(get(BASE + "/datasync/" + DOC_TYPE + "/docId"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "1"));
+    }
+
+    @Test
+    public void timedOutWhileQueued() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", (Executor) queued::add);
+
+        MvcResult result = mockMvc.perform(post(BASE + "/datasync")
+                                                   .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                                   .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                                   .contentType(MediaType.APPLICATION_JSON)
+                                                   .content("{\"documents\":[{\"_type\":\"" + DOC_TYPE + "\",\"_id\":\"docId\",\"body\":{}}]}"))
+                .andReturn();
+        timeOut(result);
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "1"));
+
+        // once timed out, the request is not run
+        queued.get(0).run();
+        assertEquals(0, persistenceService.list("appear", "solution").size());
+    }
+
+    @Test
+    public void timedOutWhileRunning() throws Exception {
+        MvcResult[] result = new MvcResult[1];
+        persistenceService = new InMemoryPersistenceService() {
+            @Override
+            public long insert(String orgId, String solutionId, DocumentReference docRef, ObjectNode body) throws UpdateException {
+                try {
+                    timeOut(result[0]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.insert(orgId, solutionId, docRef, body);
+            }
+        };
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceService", persistenceService);
+        List<Runnable> queued = new ArrayList<>();
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", (Executor) queued::add);
+
+        result[0] = mockMvc.perform(put(BASE + "/datasync/" + DOC_TYPE + "/docId")
+                                            .header(ProtocolConstants.X_AIQ_USER_ID, "user")
+                                            .header(ProtocolConstants.X_AIQ_DEVICE_ID, "device")
+                                            .contentType(MediaType.APPLICATION_JSON)
+                                            .content("{}"))
+                .andReturn();
+        queued.get(0).run();
+
+        // the write went through, so the client is not asked to retry it
+        assertEquals(1, persistenceService.list("appear", "solution").size());
+        mockMvc.perform(asyncDispatch(result[0]))
+                .andExpect(status().isGatewayTimeout())
+                .andExpect(header().doesNotExist("Retry-After"));
+    }
+
+    @Test
+    public void timedOutWhileStreaming() throws Exception {
+        MvcResult[] result = new MvcResult[1];
+        persistenceService = new InMemoryPersistenceService() {
+            @Override
+            public Collection<DocumentReference> list(String orgId, String solutionId) {
+                try {
+                    timeOut(result[0]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.list(orgId, solutionId);
+            }
+        };
+        persistenceService.insert("appear", "solution", new DocumentReference("docId", DOC_TYPE, 0), mapper.createObjectNode());
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceService", persistenceService);
+        List<Runnable> queued = new ArrayList<>();
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", (Executor) queued::add);
+
+        result[0] = mockMvc.perform(get(BASE + "/datasync")).andReturn();
+        queued.get(0).run();
+
+        // what was written to the response before is discarded, and nothing more is written to it
+        assertEquals("", result[0].getResponse().getContentAsString());
+        mockMvc.perform(asyncDispatch(result[0]))
+                .andExpect(status().isGatewayTimeout())
+                .andExpect(header().doesNotExist("ETag"));
+    }
+
+    @Test
+    public void timeoutWaitsForWrite() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // the first write to the response blocks, like one to a slow client
+        Filter slowClient = new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+                chain.doFilter(request, new HttpServletResponseWrapper(response) {
+                    @Override
+                    public ServletOutputStream getOutputStream() throws IOException {
+                        ServletOutputStream out = super.getOutputStream();
+                        return new ServletOutputStream() {
+                            @Override
+                            public void write(int b) throws IOException {
+                                write(new byte[] {(byte) b}, 0, 1);
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                writing.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                                out.write(b, off, len);
+                            }
+                        };
+                    }
+                });
+            }
+        };
+        mockMvc = MockMvcBuilders.standaloneSetup(integrationProtocol).addFilters(slowClient).build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ReflectionTestUtils.setField(integrationProtocol, "persistenceExecutor", executor);
+        try {
+            MvcResult result = mockMvc.perform(get(BASE + "/datasync")).andReturn();
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+            Thread timeout = new Thread(() -> {
+                try {
+                    timeOut(result);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            timeout.start();
+            timeout.join(200);
+            assertTrue("the timeout waits for the write in progress", timeout.isAlive());
+
+            release.countDown();
+            timeout.join(10000);
+            assertFalse(timeout.isAlive());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void timeOut(MvcResult result) throws IOException {
+        MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+    }
+
+    /**
+     * Perform a request, and dispatch its asynchronous result. A handler which writes the response itself has no
+     * result, and its response is the one of the original request.
+     */
+    private ResultActions perform(RequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        if (!result.getRequest().isAsyncStarted() || result.getAsyncResult() == null) {
+            return new ResultActions() {
+                @Override
+                public ResultActions andExpect(ResultMatcher matcher) throws Exception {
+                    matcher.match(result);
+                    return this;
+                }
+
+                @Override
+                public ResultActions andDo(ResultHandler handler) throws Exception {
+                    handler.handle(result);
+                    return this;
+                }
+
+                @Override
+                public MvcResult andReturn() {
+                    return result;
+                }
+            };
+        }
+        return mockMvc.perform(asyncDispatch(result));
+    }
+}
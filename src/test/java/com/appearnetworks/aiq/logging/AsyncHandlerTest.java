@@ -0,0 +1,85 @@
+package com.appearnetworks.aiq.logging;
+
+import com.appearnetworks.aiq.multitenant.logging.AsyncHandler;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.*;
+
+public class AsyncHandlerTest {
+
+    @Test
+    public void publishInOrder() throws Exception {
+        RecordingHandler target = new RecordingHandler(new CountDownLatch(0));
+        AsyncHandler handler = new AsyncHandler(target, 128);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "message " + i));
+        }
+        handler.close();
+
+        assertTrue(target.closed);
+        assertEquals(100, target.records.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, target.records.get(i).getMessage());
+        }
+    }
+
+    @Test
+    public void dropWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHandler target = new RecordingHandler(release);
+        AsyncHandler handler = new AsyncHandler(target, 4);
+
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        target.started.await();
+        // the writer is blocked in the first record, so four fit in the buffer
+        for (int i = 0; i < 10; i++) {
+            handler.publish(new LogRecord(Level.INFO, "message " + i));
+        }
+        assertEquals(6, handler.getDropped());
+
+        release.countDown();
+        handler.close();
+
+        assertEquals(6, target.records.size());
+        LogRecord warning = target.records.get(5);
+        assertEquals(Level.WARNING, warning.getLevel());
+        assertArrayEquals(new Object[] {6L}, warning.getParameters());
+    }
+
+    private static class RecordingHandler extends Handler {
+        final List<LogRecord> records = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+        volatile boolean closed;
+
+        RecordingHandler(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            records.add(record);
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.appearnetworks.aiq.metrics;
+
+import com.appearnetworks.aiq.multitenant.metrics.LatencyHistogram;
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[3];
+        assertEquals(0, histogram.percentiles(new double[] {0.5, 0.9, 1}, values));
+        assertArrayEquals(new long[] {0, 0, 0}, values);
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 10));
+        }
+        assertEquals(1000, histogram.percentiles(new double[] {0.5, 0.9, 1}, values));
+        assertWithin(5000, values[0]);
+        assertWithin(9000, values[1]);
+        assertWithin(10000, values[2]);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(5005000), histogram.totalNanos());
+    }
+
+    @Test
+    public void write() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.timer(Metrics.REQUESTS, "endpoint", "getDocument").record(System.nanoTime(), false);
+        metrics.timer(Metrics.REQUESTS, "endpoint", "getDocument").record(System.nanoTime(), true);
+        metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", "getDocument", "org", "app\"ear", "solution", "s").record(System.nanoTime(), false);
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        String text = out.toString();
+
+        assertTrue(text, text.contains("# TYPE aiq_request_seconds summary\n"));
+        assertTrue(text, text.contains("aiq_request_seconds{endpoint=\"getDocument\",quantile=\"0.99\"} "));
+        assertTrue(text, text.contains("aiq_request_seconds_count{endpoint=\"getDocument\"} 2\n"));
+        assertTrue(text, text.contains("# TYPE aiq_request_errors_total counter\n"));
+        assertTrue(text, text.contains("aiq_request_errors_total{endpoint=\"getDocument\"} 1\n"));
+        assertTrue(text, text.contains("aiq_tenant_request_seconds_count{endpoint=\"getDocument\",org=\"app\\\"ear\",solution=\"s\"} 1\n"));
+        // each family is written once
+        assertEquals(text.indexOf("# TYPE aiq_request_seconds "), text.lastIndexOf("# TYPE aiq_request_seconds "));
+    }
+
+    @Test
+    public void labelValuesAreCapped() throws Exception {
+        Metrics metrics = new Metrics();
+        for (int i = 0; i < Metrics.MAX_TIMERS; i++) {
+            metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", "getDocument", "org", "org" + i, "solution", "s").record(System.nanoTime(), false);
+        }
+        Metrics.Timer other = metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", "getDocument", "org", "unknown", "solution", "s");
+        assertSame(other, metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", "listDocuments", "org", "unknown2", "solution", "s"));
+        other.record(System.nanoTime(), false);
+        // timers which exist are still used, and other names are not affected
+        assertNotSame(other, metrics.timer(Metrics.TENANT_REQUESTS, "endpoint", "getDocument", "org", "org0", "solution", "s"));
+        assertNotSame(other, metrics.timer(Metrics.REQUESTS, "endpoint", "getDocument"));
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("aiq_tenant_request_seconds_count{endpoint=\"other\",org=\"other\",solution=\"other\"} 1\n"));
+        assertFalse(text, text.contains("org=\"unknown\""));
+    }
+
+    /**
+     * Percentiles are the upper bound of a bucket, at most 25% above the true value.
+     */
+    private static void assertWithin(long expectedMicros, long actualNanos) {
+        long actualMicros = TimeUnit.NANOSECONDS.toMicros(actualNanos);
+        assertTrue(expectedMicros + " <= " + actualMicros, actualMicros >= expectedMicros);
+        assertTrue(actualMicros + " <= " + expectedMicros * 1.25, actualMicros <= expectedMicros * 1.25);
+    }
+}
@@ -0,0 +1,220 @@
+package com.appearnetworks.aiq.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.persistence.AttachmentStore;
+import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.PersistenceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AttachmentStoreTest {
+
+    private static final String DOC_ID = "docId";
+    private static final String DOC_TYPE = "docType";
+    private static final String ORG_ID = "appear";
+    private static final String SOLUTION_ID = "solution";
+    private static final String NAME = "photo.png";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private File directory;
+    private PersistenceService persistenceService;
+    private AttachmentStore attachmentStore;
+
+    @Before
+    public void setup() throws Exception {
+        directory = folder.newFolder("attachments");
+        persistenceService = new InMemoryPersistenceService();
+        attachmentStore = new AttachmentStore(persistenceService, directory, 16);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), mapper.createObjectNode());
+    }
+
+    @Test
+    public void insertAndOpen() throws Exception {
+        long revision = put(0, "FOO");
+        assertEquals(1, revision);
+
+        assertEquals("FOO", read());
+        ObjectNode document = persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID);
+        assertEquals(2, document.get("_rev").asLong());
+        assertEquals(1, document.get("_attachments").get(NAME).get("_rev").asLong());
+        assertEquals("image/png", document.get("_attachments").get(NAME).get("content_type").asText());
+    }
+
+    @Test
+    public void update() throws Exception {
+        put(0, "FOO");
+        assertEquals(2, put(1, "BAR"));
+
+        assertEquals("BAR", read());
+        // the previous revision is gone
+        assertEquals(1, files().count());
+
+        try {
+            put(1, "BAZ");
+            fail("should throw UpdateException(PRECONDITION_FAILED)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.PRECONDITION_FAILED, e.getStatusCode());
+        }
+        try {
+            put(0, "BAZ");
+            fail("should throw UpdateException(CONFLICT)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.CONFLICT, e.getStatusCode());
+        }
+        assertEquals("BAR", read());
+    }
+
+    @Test
+    public void missingDocument() throws Exception {
+        try {
+            attachmentStore.put(ORG_ID, SOLUTION_ID, DOC_TYPE, "missing", NAME, MediaType.IMAGE_PNG, 0, -1, content("FOO"));
+            fail("should throw UpdateException(NOT_FOUND)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+        }
+        try {
+            attachmentStore.put(ORG_ID, SOLUTION_ID, "otherType", DOC_ID, NAME, MediaType.IMAGE_PNG, 0, -1, content("FOO"));
+            fail("should throw UpdateException(NOT_FOUND)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+        }
+        assertNull(attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME));
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        try {
+            attachmentStore.put(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG, 0, -1, content("0123456789ABCDEFG"));
+            fail("should throw UpdateException(REQUEST_ENTITY_TOO_LARGE)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatusCode());
+        }
+        assertNull(attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME));
+        assertEquals(0, files().count());
+    }
+
+    @Test
+    public void delete() throws Exception {
+        put(0, "FOO");
+        attachmentStore.delete(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, 1);
+
+        assertNull(attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME));
+        assertEquals(0, files().count());
+        assertEquals(0, persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID).get("_attachments").size());
+    }
+
+    @Test
+    public void revisionNotReusedAfterDelete() throws Exception {
+        put(0, "FOO");
+        attachmentStore.delete(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, 1);
+
+        long revision = put(0, "BAR");
+        assertTrue(revision > 1);
+        try (AttachmentStore.Attachment attachment = attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME)) {
+            assertEquals(revision, attachment.revision);
+        }
+        assertEquals("BAR", read());
+    }
+
+    @Test
+    public void clientCannotChangeAttachments() throws Exception {
+        put(0, "FOO");
+        ObjectNode body = mapper.createObjectNode();
+        body.putObject("_attachments").putObject("other").put("_rev", 7);
+
+        attachmentStore.keepAttachments(ORG_ID, SOLUTION_ID, DOC_ID, body);
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 2), body);
+
+        ObjectNode document = persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID);
+        assertFalse(document.get("_attachments").has("other"));
+        assertEquals("FOO", read());
+    }
+
+    @Test
+    public void pruneDeletedDocument() throws Exception {
+        put(0, "FOO");
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 2));
+
+        attachmentStore.prune(ORG_ID, SOLUTION_ID, DOC_ID);
+
+        assertEquals(0, files().count());
+    }
+
+    @Test
+    public void resumeChunks() throws Exception {
+        AttachmentStore.Upload upload = attachmentStore.putChunk(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG,
+                                                                 0, 0, 4, 6, content("FO"));
+        // the request broke off halfway
+        assertEquals(2, upload.received);
+        assertEquals(0, upload.revision);
+        assertEquals(2, attachmentStore.uploaded(ORG_ID, SOLUTION_ID, DOC_ID, NAME, 0, 6).received);
+        assertNull(attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME));
+
+        try {
+            attachmentStore.putChunk(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG, 0, 3, 3, 6, content("BAR"));
+            fail("should throw UpdateException(REQUESTED_RANGE_NOT_SATISFIABLE)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, e.getStatusCode());
+        }
+
+        upload = attachmentStore.putChunk(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG, 0, 2, 4, 6, content("OBAR"));
+        assertEquals(6, upload.received);
+        assertEquals(1, upload.revision);
+        assertEquals("FOOBAR", read());
+        // the spool file is gone
+        assertEquals(1, files().count());
+    }
+
+    @Test
+    public void chunkTooLarge() throws Exception {
+        try {
+            attachmentStore.putChunk(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG, 0, 0, 4, 17, content("FOOB"));
+            fail("should throw UpdateException(REQUEST_ENTITY_TOO_LARGE)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatusCode());
+        }
+        assertEquals(0, files().count());
+    }
+
+    private long put(long expectedRevision, String content) throws UpdateException, IOException {
+        return attachmentStore.put(ORG_ID, SOLUTION_ID, DOC_TYPE, DOC_ID, NAME, MediaType.IMAGE_PNG, expectedRevision, -1, content(content));
+    }
+
+    private String read() throws IOException {
+        try (AttachmentStore.Attachment attachment = attachmentStore.open(ORG_ID, SOLUTION_ID, DOC_ID, NAME)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            attachment.transferTo(out);
+            assertEquals(out.size(), attachment.size);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private Stream<?> files() throws IOException {
+        return Files.walk(directory.toPath()).filter(Files::isRegularFile);
+    }
+
+    private static ByteArrayInputStream content(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
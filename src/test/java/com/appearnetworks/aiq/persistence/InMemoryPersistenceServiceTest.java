@@ -1,16 +1,36 @@
 package com.appearnetworks.aiq.persistence;
 
+import com.appearnetworks.aiq.multitenant.integration.DocumentChanges;
+import com.appearnetworks.aiq.multitenant.integration.DocumentPage;
 import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
 import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
 import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
 import com.appearnetworks.aiq.multitenant.persistence.PersistenceService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static net.javacrumbs.jsonunit.JsonAssert.assertJsonEquals;
 import static org.junit.Assert.*;
@@ -25,6 +45,9 @@ public class InMemoryPersistenceServiceTest {
     private static final String ORG_ID = "appear";
     private static final String SOLUTION_ID = "solution";
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private ObjectMapper mapper = new ObjectMapper();
 
     private PersistenceService persistenceService;
@@ -60,6 +83,24 @@ public class InMemoryPersistenceServiceTest {
         assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, NOT_THERE));
     }
 
+    @Test
+    public void storedDocumentIsImmutable() throws UpdateException {
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        assertFalse(document.has("_rev"));
+
+        document.put("data", NEW_DATA);
+        persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID).put("data", NEW_DATA);
+
+        ObjectNode expected = mapper.createObjectNode();
+        expected.put("_id", DOC_ID);
+        expected.put("_type", DOC_TYPE);
+        expected.put("data", DATA);
+        expected.put("_rev", 1);
+        assertJsonEquals(expected, persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID));
+        assertEquals("{\"_id\":\"docId\",\"_type\":\"docType\",\"data\":\"FOO\",\"_rev\":1}",
+                     new String(persistenceService.retrieveSerialized(ORG_ID, SOLUTION_ID, DOC_ID).json, StandardCharsets.UTF_8));
+    }
+
     @Test
     public void insertConflict() throws UpdateException {
         persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
@@ -195,4 +236,392 @@ public class InMemoryPersistenceServiceTest {
         documents = persistenceService.list(ORG_ID, "solvation");
         assertEquals(0, documents.size());
     }
+
+    @Test
+    public void changesSinceToken() throws UpdateException {
+        long updated = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, 0), mapper.createObjectNode());
+        long deleted = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, 0), mapper.createObjectNode());
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("unchanged", DOC_TYPE, 0), mapper.createObjectNode());
+
+        DocumentChanges all = persistenceService.changes(ORG_ID, SOLUTION_ID, null);
+        assertTrue(all.full);
+        assertEquals(3, toList(all.changed).size());
+
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, updated), mapper.createObjectNode());
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, deleted));
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("inserted", DOC_TYPE, 0), mapper.createObjectNode());
+
+        DocumentChanges changes = persistenceService.changes(ORG_ID, SOLUTION_ID, all.token);
+        assertFalse(changes.full);
+        assertEquals(new HashSet<>(Arrays.asList(new DocumentReference("updated", DOC_TYPE, 2), new DocumentReference("inserted", DOC_TYPE, 1))),
+                     new HashSet<>(toList(changes.changed)));
+        assertEquals(Arrays.asList(new DocumentReference("deleted", DOC_TYPE, deleted)), changes.deleted);
+
+        DocumentChanges none = persistenceService.changes(ORG_ID, SOLUTION_ID, changes.token);
+        assertFalse(none.full);
+        assertEquals(0, toList(none.changed).size());
+        assertEquals(0, none.deleted.size());
+        assertEquals(changes.token, none.token);
+    }
+
+    @Test
+    public void changesReinsertedDocument() throws UpdateException {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        String token = persistenceService.changes(ORG_ID, SOLUTION_ID, null).token;
+
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, revision));
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+
+        DocumentChanges changes = persistenceService.changes(ORG_ID, SOLUTION_ID, token);
+        assertEquals(Arrays.asList(new DocumentReference(DOC_ID, DOC_TYPE, 1)), toList(changes.changed));
+        assertEquals(0, changes.deleted.size());
+    }
+
+    @Test
+    public void changesUnknownToken() throws UpdateException {
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+
+        DocumentChanges changes = new InMemoryPersistenceService().changes(ORG_ID, SOLUTION_ID, null);
+        changes = persistenceService.changes(ORG_ID, SOLUTION_ID, changes.token);
+        assertTrue(changes.full);
+        assertEquals(1, toList(changes.changed).size());
+
+        assertTrue(persistenceService.changes(ORG_ID, SOLUTION_ID, "garbage").full);
+    }
+
+    @Test
+    public void changesAfterManyDeletes() throws UpdateException {
+        String token = persistenceService.changes(ORG_ID, SOLUTION_ID, null).token;
+        for (int i = 0; i < 10001; i++) {
+            long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), mapper.createObjectNode());
+            persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, revision));
+        }
+
+        // the oldest tombstones are forgotten, so the token is too old to use
+        assertTrue(persistenceService.changes(ORG_ID, SOLUTION_ID, token).full);
+    }
+
+    @Test
+    public void versionAndRevision() throws UpdateException {
+        String empty = persistenceService.version(ORG_ID, SOLUTION_ID);
+        assertEquals(0, persistenceService.revision(ORG_ID, SOLUTION_ID, DOC_ID));
+
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        String inserted = persistenceService.version(ORG_ID, SOLUTION_ID);
+        assertNotEquals(empty, inserted);
+        assertEquals(inserted, persistenceService.version(ORG_ID, SOLUTION_ID));
+        assertEquals(empty, persistenceService.version(ORG_ID, "other"));
+        assertEquals(1, persistenceService.revision(ORG_ID, SOLUTION_ID, DOC_ID));
+
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 1));
+        assertNotEquals(inserted, persistenceService.version(ORG_ID, SOLUTION_ID));
+        assertEquals(0, persistenceService.revision(ORG_ID, SOLUTION_ID, DOC_ID));
+    }
+
+    @Test
+    public void pages() throws UpdateException {
+        for (int i = 0; i < 5; i++) {
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), mapper.createObjectNode());
+        }
+
+        DocumentPage first = persistenceService.list(ORG_ID, SOLUTION_ID, null, 2);
+        assertEquals(Arrays.asList(new DocumentReference("doc0", DOC_TYPE, 1), new DocumentReference("doc1", DOC_TYPE, 1)),
+                     first.documentReferences);
+        assertNotNull(first.cursor);
+
+        DocumentPage second = persistenceService.list(ORG_ID, SOLUTION_ID, first.cursor, 2);
+        assertEquals(Arrays.asList(new DocumentReference("doc2", DOC_TYPE, 1), new DocumentReference("doc3", DOC_TYPE, 1)),
+                     second.documentReferences);
+
+        DocumentPage last = persistenceService.list(ORG_ID, SOLUTION_ID, second.cursor, 2);
+        assertEquals(Arrays.asList(new DocumentReference("doc4", DOC_TYPE, 1)), last.documentReferences);
+        assertNull(last.cursor);
+    }
+
+    @Test
+    public void pagesWithConcurrentWrites() throws UpdateException {
+        for (int i = 0; i < 4; i++) {
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), mapper.createObjectNode());
+        }
+
+        DocumentPage first = persistenceService.list(ORG_ID, SOLUTION_ID, null, 2);
+        // an updated document already returned, and one not yet returned, move after the cursor
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("doc0", DOC_TYPE, 1), mapper.createObjectNode());
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("doc3", DOC_TYPE, 1), mapper.createObjectNode());
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("doc2", DOC_TYPE, 1));
+
+        DocumentPage rest = persistenceService.list(ORG_ID, SOLUTION_ID, first.cursor, 10);
+        assertEquals(Arrays.asList(new DocumentReference("doc0", DOC_TYPE, 2), new DocumentReference("doc3", DOC_TYPE, 2)),
+                     rest.documentReferences);
+        assertNull(rest.cursor);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageUnknownCursor() {
+        persistenceService.list(ORG_ID, SOLUTION_ID, "garbage", 10);
+    }
+
+    @Test
+    public void concurrentWritesInManyOrganizations() throws Exception {
+        final int organizations = 16;
+        final int documents = 200;
+        final int updates = 5;
+
+        ExecutorService executor = Executors.newFixedThreadPool(organizations);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int org = 0; org < organizations; org++) {
+                final String orgId = "org" + org;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < documents; i++) {
+                        String docId = "doc" + i;
+                        long revision = persistenceService.insert(orgId, SOLUTION_ID, new DocumentReference(docId, DOC_TYPE, 0), mapper.createObjectNode());
+                        for (int u = 0; u < updates; u++) {
+                            revision = persistenceService.update(orgId, SOLUTION_ID, new DocumentReference(docId, DOC_TYPE, revision), mapper.createObjectNode());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int org = 0; org < organizations; org++) {
+            Collection<DocumentReference> references = persistenceService.list("org" + org, SOLUTION_ID);
+            assertEquals(documents, references.size());
+            for (DocumentReference reference : references) {
+                assertEquals(1 + updates, reference._rev);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentUpdatesOfSameDocument() throws Exception {
+        final int threads = 8;
+        final int attempts = 500;
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    int succeeded = 0;
+                    for (int i = 0; i < attempts; i++) {
+                        long current = persistenceService.list(ORG_ID, SOLUTION_ID).iterator().next()._rev;
+                        try {
+                            persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, current), mapper.createObjectNode());
+                            succeeded++;
+                        } catch (UpdateException e) {
+                            assertEquals(HttpStatus.PRECONDITION_FAILED, e.getStatusCode());
+                        }
+                    }
+                    return succeeded;
+                }));
+            }
+
+            int succeeded = 0;
+            for (Future<Integer> future : futures) {
+                succeeded += future.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(1 + succeeded, persistenceService.list(ORG_ID, SOLUTION_ID).iterator().next()._rev);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void writeBatch() throws Exception {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, 0), document);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, 0), document);
+
+        List<WriteResult> results = persistenceService.write(ORG_ID, SOLUTION_ID, Arrays.asList(
+                new DocumentWrite(new DocumentReference(DOC_ID, DOC_TYPE, 0), document),
+                new DocumentWrite(new DocumentReference("updated", DOC_TYPE, revision), document),
+                new DocumentWrite(new DocumentReference("deleted", DOC_TYPE, revision), null),
+                new DocumentWrite(new DocumentReference("updated", DOC_TYPE, revision), document),
+                new DocumentWrite(new DocumentReference(DOC_ID, DOC_TYPE, 0), document)));
+
+        assertEquals(HttpStatus.CREATED, results.get(0).status);
+        assertEquals(1, results.get(0).revision);
+        assertEquals(HttpStatus.NO_CONTENT, results.get(1).status);
+        assertEquals(2, results.get(1).revision);
+        assertEquals(HttpStatus.NO_CONTENT, results.get(2).status);
+        // later writes see the earlier ones
+        assertEquals(HttpStatus.PRECONDITION_FAILED, results.get(3).status);
+        assertEquals(0, results.get(3).revision);
+        assertEquals(HttpStatus.CONFLICT, results.get(4).status);
+
+        assertEquals(new HashSet<>(Arrays.asList(new DocumentReference(DOC_ID, DOC_TYPE, 1), new DocumentReference("updated", DOC_TYPE, 2))),
+                     new HashSet<>(persistenceService.list(ORG_ID, SOLUTION_ID)));
+    }
+
+    @Test
+    public void documentsOfType() throws UpdateException {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("a", DOC_TYPE, 0), document);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("other", "otherType", 0), document);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("b", DOC_TYPE, 0), document);
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("a", DOC_TYPE, revision), document);
+
+        // in change order
+        assertEquals(Arrays.asList(new DocumentReference("b", DOC_TYPE, 1), new DocumentReference("a", DOC_TYPE, 2)),
+                     new ArrayList<>(persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE)));
+        assertEquals(1, persistenceService.list(ORG_ID, SOLUTION_ID, "otherType").size());
+        assertEquals(0, persistenceService.list(ORG_ID, SOLUTION_ID, NOT_THERE).size());
+
+        DocumentPage page = persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE, null, 1);
+        assertEquals(Arrays.asList(new DocumentReference("b", DOC_TYPE, 1)), page.documentReferences);
+        page = persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE, page.cursor, 1);
+        assertEquals(Arrays.asList(new DocumentReference("a", DOC_TYPE, 2)), page.documentReferences);
+        assertNull(page.cursor);
+
+        assertNotNull(persistenceService.retrieveSerialized(ORG_ID, SOLUTION_ID, DOC_TYPE, "a"));
+        assertNull(persistenceService.retrieveSerialized(ORG_ID, SOLUTION_ID, "otherType", "a"));
+        assertEquals(2, persistenceService.revision(ORG_ID, SOLUTION_ID, DOC_TYPE, "a"));
+        assertEquals(0, persistenceService.revision(ORG_ID, SOLUTION_ID, "otherType", "a"));
+
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("other", "otherType", 1));
+        assertEquals(0, persistenceService.list(ORG_ID, SOLUTION_ID, "otherType").size());
+    }
+
+    @Test
+    public void emptyTypesAreRemoved() throws Exception {
+        final int threads = 8;
+        final int attempts = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String prefix = t + "-";
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    // each thread keeps its last document of the type, which is emptied and filled again meanwhile
+                    for (int i = 0; i < attempts; i++) {
+                        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(prefix + i, DOC_TYPE, 0), mapper.createObjectNode());
+                        if (i < attempts - 1) {
+                            persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(prefix + i, DOC_TYPE, revision));
+                        }
+                        revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(prefix + "gone" + i, "gone", 0), mapper.createObjectNode());
+                        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(prefix + "gone" + i, "gone", revision));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads, persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE).size());
+        assertEquals(threads, new ArrayList<>(persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE)).size());
+        assertEquals(0, persistenceService.list(ORG_ID, SOLUTION_ID, "gone").size());
+
+        Map<?, ?> organizations = (Map<?, ?>) ReflectionTestUtils.getField(persistenceService, "organizations");
+        Object solution = ((Map<?, ?>) organizations.get(ORG_ID)).get(SOLUTION_ID);
+        Object documents = ReflectionTestUtils.getField(solution, "documents");
+        assertEquals(Collections.singleton(DOC_TYPE), ((Map<?, ?>) ReflectionTestUtils.getField(documents, "types")).keySet());
+    }
+
+    @Test
+    public void referencesAreShared() throws UpdateException {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("other", new String(DOC_TYPE), 0), document);
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference(new String(DOC_ID), DOC_TYPE, revision), document);
+
+        List<DocumentReference> references = new ArrayList<>(persistenceService.list(ORG_ID, SOLUTION_ID, DOC_TYPE));
+        DocumentReference other = references.get(0);
+        DocumentReference updated = references.get(1);
+        assertEquals(new DocumentReference(DOC_ID, DOC_TYPE, 2), updated);
+        // listing again returns the same references, which share the id of the first revision and the type name
+        assertSame(updated, persistenceService.list(ORG_ID, SOLUTION_ID, null, 10).documentReferences.get(1));
+        assertSame(DOC_ID, updated._id);
+        assertSame(updated._type, other._type);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void insertInvalidId() throws UpdateException {
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("in valid", DOC_TYPE, 0), document);
+    }
+
+    @Test
+    public void spillOverTenantQuota() throws Exception {
+        File spillDirectory = folder.newFolder("spill");
+        InMemoryPersistenceService persistenceService = new InMemoryPersistenceService(spillDirectory, 0, 20000, 0);
+        ObjectNode body = mapper.createObjectNode().put("data", new String(new char[1000]).replace('\0', 'x'));
+
+        for (int i = 0; i < 10; i++) {
+            persistenceService.insert(ORG_ID, "cold", new DocumentReference("doc" + i, DOC_TYPE, 0), body);
+        }
+        String token = persistenceService.changes(ORG_ID, "cold", null).token;
+        persistenceService.evict();
+        assertEquals(0, spillDirectory.list().length);
+
+        for (int i = 0; i < 10; i++) {
+            persistenceService.insert(ORG_ID, "hot", new DocumentReference("doc" + i, DOC_TYPE, 0), body);
+            persistenceService.insert("other", "hot", new DocumentReference("doc" + i, DOC_TYPE, 0), body);
+        }
+        persistenceService.evict();
+        // only the least recently used solution of the organization over its quota
+        assertEquals(1, spillDirectory.list().length);
+
+        // loaded back, with the same change sequence
+        assertEquals(10, persistenceService.list(ORG_ID, "cold").size());
+        persistenceService.update(ORG_ID, "cold", new DocumentReference("doc0", DOC_TYPE, 1), body);
+        DocumentChanges changes = persistenceService.changes(ORG_ID, "cold", token);
+        assertFalse(changes.full);
+        assertEquals(Arrays.asList(new DocumentReference("doc0", DOC_TYPE, 2)), toList(changes.changed));
+
+        persistenceService.close();
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    @Test
+    public void spillOverMemoryBudget() throws Exception {
+        File spillDirectory = folder.newFolder("spill");
+        InMemoryPersistenceService persistenceService = new InMemoryPersistenceService(spillDirectory, 1, 0, 0);
+
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        persistenceService.insert("other", SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, 0), document);
+        persistenceService.evict();
+        assertEquals(2, spillDirectory.list().length);
+
+        // spilled again without changes, and after them
+        document.put("_rev", revision);
+        assertJsonEquals(document, persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID));
+        persistenceService.evict();
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference(DOC_ID, DOC_TYPE, revision));
+        persistenceService.evict();
+
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, DOC_ID));
+        assertEquals(0, persistenceService.list(ORG_ID, SOLUTION_ID, null, 10).documentReferences.size());
+        assertEquals(1, persistenceService.list("other", SOLUTION_ID).size());
+        persistenceService.evict();
+        assertEquals(1, persistenceService.list("other", SOLUTION_ID, DOC_TYPE).size());
+        persistenceService.close();
+    }
+
+    @Test
+    public void writeBatchWithInvalidId() {
+        List<WriteResult> results = persistenceService.write(ORG_ID, SOLUTION_ID, Arrays.asList(
+                new DocumentWrite(new DocumentReference("first", DOC_TYPE, 0), document),
+                new DocumentWrite(new DocumentReference("a b", DOC_TYPE, 0), document),
+                new DocumentWrite(new DocumentReference("last", "a/b", 0), document),
+                new DocumentWrite(new DocumentReference("last", DOC_TYPE, 0), document)));
+
+        assertEquals(Arrays.asList(HttpStatus.CREATED, HttpStatus.BAD_REQUEST, HttpStatus.BAD_REQUEST, HttpStatus.CREATED),
+                     Arrays.asList(results.get(0).status, results.get(1).status, results.get(2).status, results.get(3).status));
+        assertEquals(2, persistenceService.list(ORG_ID, SOLUTION_ID).size());
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable) {
+        List<T> list = new ArrayList<>();
+        iterable.forEach(list::add);
+        return list;
+    }
 }
@@ -0,0 +1,345 @@
+package com.appearnetworks.aiq.persistence;
+
+import com.appearnetworks.aiq.multitenant.integration.DocumentReference;
+import com.appearnetworks.aiq.multitenant.integration.DocumentWrite;
+import com.appearnetworks.aiq.multitenant.integration.UpdateException;
+import com.appearnetworks.aiq.multitenant.integration.WriteResult;
+import com.appearnetworks.aiq.multitenant.persistence.InMemoryPersistenceService;
+import com.appearnetworks.aiq.multitenant.persistence.JournalingPersistenceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static net.javacrumbs.jsonunit.JsonAssert.assertJsonEquals;
+import static org.junit.Assert.*;
+
+public class JournalingPersistenceServiceTest {
+
+    private static final String DOC_TYPE = "docType";
+    private static final String ORG_ID = "appear";
+    private static final String SOLUTION_ID = "solution";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private File directory;
+    private JournalingPersistenceService persistenceService;
+
+    @Before
+    public void setup() throws IOException {
+        directory = folder.newFolder("log");
+        persistenceService = new JournalingPersistenceService(directory, SEGMENT_SIZE);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        persistenceService.close();
+    }
+
+    @Test
+    public void recoverAfterRestart() throws Exception {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, 0), document("FOO"));
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, revision), document("BAR"));
+        revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, 0), document("FOO"));
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, revision));
+        persistenceService.insert("disappear", SOLUTION_ID, new DocumentReference("other", DOC_TYPE, 0), document("BAZ"));
+
+        restart();
+
+        assertEquals(Arrays.asList(new DocumentReference("updated", DOC_TYPE, 2)), new ArrayList<>(persistenceService.list(ORG_ID, SOLUTION_ID)));
+        ObjectNode expected = document("BAR");
+        expected.put("_rev", 2);
+        assertJsonEquals(expected, persistenceService.retrieve(ORG_ID, SOLUTION_ID, "updated"));
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "deleted"));
+        assertEquals(1, persistenceService.list("disappear", SOLUTION_ID).size());
+
+        try {
+            persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("updated", DOC_TYPE, 1), document("BAZ"));
+            fail("should throw UpdateException(PRECONDITION_FAILED)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.PRECONDITION_FAILED, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void recoverBatchAfterRestart() throws Exception {
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, 0), document("FOO"));
+
+        List<WriteResult> results = persistenceService.write(ORG_ID, SOLUTION_ID, Arrays.asList(
+                new DocumentWrite(new DocumentReference("inserted", DOC_TYPE, 0), document("FOO")),
+                new DocumentWrite(new DocumentReference("deleted", DOC_TYPE, revision), null),
+                new DocumentWrite(new DocumentReference("missing", DOC_TYPE, 1), document("BAR")),
+                new DocumentWrite(new DocumentReference("inserted", DOC_TYPE, 1), document("BAR"))));
+        assertEquals(HttpStatus.PRECONDITION_FAILED, results.get(2).status);
+        assertEquals(2, results.get(3).revision);
+
+        restart();
+
+        assertEquals(Arrays.asList(new DocumentReference("inserted", DOC_TYPE, 2)), new ArrayList<>(persistenceService.list(ORG_ID, SOLUTION_ID)));
+        ObjectNode expected = document("BAR");
+        expected.put("_rev", 2);
+        assertJsonEquals(expected, persistenceService.retrieve(ORG_ID, SOLUTION_ID, "inserted"));
+    }
+
+    @Test
+    public void writeBatchWithInvalidId() throws Exception {
+        List<WriteResult> results = persistenceService.write(ORG_ID, SOLUTION_ID, Arrays.asList(
+                new DocumentWrite(new DocumentReference("first", DOC_TYPE, 0), document("FOO")),
+                new DocumentWrite(new DocumentReference("a b", DOC_TYPE, 0), document("FOO")),
+                new DocumentWrite(new DocumentReference("last", DOC_TYPE, 0), document("FOO"))));
+        assertEquals(HttpStatus.CREATED, results.get(0).status);
+        assertEquals(HttpStatus.BAD_REQUEST, results.get(1).status);
+        assertEquals(HttpStatus.CREATED, results.get(2).status);
+
+        restart();
+
+        assertEquals(2, persistenceService.list(ORG_ID, SOLUTION_ID).size());
+    }
+
+    @Test
+    public void recoverFromTornRecord() throws Exception {
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("first", DOC_TYPE, 0), document("FOO"));
+        restart();
+        File segment = onlySegment();
+        long firstEnd = endOfData(segment);
+
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("second", DOC_TYPE, 0), document("BAR"));
+        persistenceService.close();
+        long secondEnd = endOfData(segment);
+
+        // simulate a crash halfway through writing the second record
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(firstEnd + (secondEnd - firstEnd) / 2);
+        }
+        persistenceService = new JournalingPersistenceService(directory, SEGMENT_SIZE);
+
+        assertNotNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "first"));
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "second"));
+
+        // the log keeps working after the torn record
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("third", DOC_TYPE, 0), document("BAZ"));
+        restart();
+        assertEquals(2, persistenceService.list(ORG_ID, SOLUTION_ID).size());
+        assertNotNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "third"));
+    }
+
+    @Test
+    public void staleRecordsAfterCleanEndAreNotReplayed() throws Exception {
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("first", DOC_TYPE, 0), document("FOO"));
+        restart();
+        File segment = onlySegment();
+        long firstEnd = endOfData(segment);
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("second", DOC_TYPE, 0), document("BAR"));
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("third", DOC_TYPE, 0), document("BAZ"));
+        persistenceService.close();
+
+        // a zero length looks like the clean end of the log, with the third record left behind it
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(firstEnd);
+            file.writeInt(0);
+        }
+        persistenceService = new JournalingPersistenceService(directory, SEGMENT_SIZE);
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "third"));
+
+        // a record of the same size closes the gap, which must not bring the third one back
+        persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("fourth", DOC_TYPE, 0), document("BAR"));
+        restart();
+        assertNotNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "fourth"));
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "third"));
+    }
+
+    @Test
+    public void rollSegments() throws Exception {
+        String data = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 0; i < 200; i++) {
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), document(data));
+        }
+        assertTrue(directory.listFiles().length > 1);
+
+        restart();
+
+        assertEquals(200, persistenceService.list(ORG_ID, SOLUTION_ID).size());
+    }
+
+    @Test
+    public void snapshotTruncatesLog() throws Exception {
+        String data = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 0; i < 200; i++) {
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), document(data));
+        }
+        long revision = persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, 0), document("FOO"));
+
+        persistenceService.snapshot();
+
+        assertEquals(1, directory.listFiles((dir, name) -> name.endsWith(".log")).length);
+
+        persistenceService.delete(ORG_ID, SOLUTION_ID, new DocumentReference("deleted", DOC_TYPE, revision));
+        persistenceService.update(ORG_ID, SOLUTION_ID, new DocumentReference("doc0", DOC_TYPE, 1), document("BAR"));
+
+        restart();
+
+        assertEquals(200, persistenceService.list(ORG_ID, SOLUTION_ID).size());
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "deleted"));
+        assertEquals("BAR", persistenceService.retrieve(ORG_ID, SOLUTION_ID, "doc0").get("data").asText());
+        assertEquals(2, persistenceService.retrieve(ORG_ID, SOLUTION_ID, "doc0").get("_rev").asLong());
+    }
+
+    @Test
+    public void snapshotWhileWriting() throws Exception {
+        final int threads = 4;
+        final int documents = 200;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String orgId = "org" + t;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < documents; i++) {
+                        long revision = persistenceService.insert(orgId, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), document("FOO"));
+                        revision = persistenceService.update(orgId, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, revision), document("BAR"));
+                        if (i % 2 == 0) {
+                            persistenceService.delete(orgId, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, revision));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            while (!futures.stream().allMatch(Future::isDone)) {
+                persistenceService.snapshot();
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        restart();
+
+        for (int t = 0; t < threads; t++) {
+            assertEquals(documents / 2, persistenceService.list("org" + t, SOLUTION_ID).size());
+            for (DocumentReference reference : persistenceService.list("org" + t, SOLUTION_ID)) {
+                assertEquals(2, reference._rev);
+            }
+        }
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        try {
+            persistenceService.insert(ORG_ID, SOLUTION_ID, new DocumentReference("huge", DOC_TYPE, 0), document(new String(new char[SEGMENT_SIZE]).replace('\0', 'x')));
+            fail("should throw UpdateException(REQUEST_ENTITY_TOO_LARGE)");
+        } catch (UpdateException e) {
+            assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatusCode());
+        }
+        assertNull(persistenceService.retrieve(ORG_ID, SOLUTION_ID, "huge"));
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final int threads = 8;
+        final int documents = 100;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String orgId = "org" + t;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < documents; i++) {
+                        long revision = persistenceService.insert(orgId, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, 0), document("FOO"));
+                        persistenceService.update(orgId, SOLUTION_ID, new DocumentReference("doc" + i, DOC_TYPE, revision), document("BAR"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        restart();
+
+        for (int t = 0; t < threads; t++) {
+            assertEquals(documents, persistenceService.list("org" + t, SOLUTION_ID).size());
+            for (DocumentReference reference : persistenceService.list("org" + t, SOLUTION_ID)) {
+                assertEquals(2, reference._rev);
+            }
+        }
+    }
+
+    @Test
+    public void snapshotSpilledSolutions() throws Exception {
+        persistenceService.close();
+        File spillDirectory = folder.newFolder("spill");
+        InMemoryPersistenceService index = new InMemoryPersistenceService(spillDirectory, 1, 0, 0);
+        persistenceService = new JournalingPersistenceService(directory, SEGMENT_SIZE, 0, index);
+        for (int i = 0; i < 10; i++) {
+            persistenceService.insert(ORG_ID, "solution" + i, new DocumentReference("doc", DOC_TYPE, 0), document("FOO"));
+        }
+        index.evict();
+        assertEquals(10, spillDirectory.list().length);
+        // all but the updated solution are read from their spill files
+        persistenceService.update(ORG_ID, "solution0", new DocumentReference("doc", DOC_TYPE, 1), document("BAR"));
+        persistenceService.snapshot();
+
+        restart();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, persistenceService.list(ORG_ID, "solution" + i).size());
+        }
+        assertEquals(2, persistenceService.revision(ORG_ID, "solution0", "doc"));
+    }
+
+    private ObjectNode document(String data) {
+        ObjectNode document = mapper.createObjectNode();
+        document.put("data", data);
+        return document;
+    }
+
+    private void restart() throws IOException {
+        persistenceService.close();
+        persistenceService = new JournalingPersistenceService(directory, SEGMENT_SIZE);
+    }
+
+    private File onlySegment() {
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private static long endOfData(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] == 0) {
+                end--;
+            }
+            return end;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.appearnetworks.aiq.server;
+
+import com.appearnetworks.aiq.multitenant.metrics.Metrics;
+import com.appearnetworks.aiq.multitenant.server.IntegrationService;
+import com.appearnetworks.aiq.multitenant.server.ServerUnavailableException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IntegrationServiceTest {
+
+    private static final int TIMEOUT_MILLIS = 500;
+
+    private static final int CALLERS = 8;
+    private static final long TOKEN_DELAY_MILLIS = 200;
+
+    private IntegrationService integrationService;
+    private HttpServer platform;
+    private ExecutorService platformExecutor;
+
+    /**
+     * Times at which access tokens were requested, and at which they were handed out, in milliseconds.
+     */
+    private final List<Long> tokenRequests = new CopyOnWriteArrayList<>();
+    private final List<Long> tokensIssued = new CopyOnWriteArrayList<>();
+
+    /**
+     * Lifetime of the access tokens handed out by the platform, in seconds.
+     */
+    private volatile String expiresIn = "3600";
+
+    /**
+     * Token which the platform no longer accepts.
+     */
+    private volatile String expiredToken;
+
+    /**
+     * Counted down when the platform holds back the first rejection of the expired token, until {@link #release}.
+     */
+    private volatile CountDownLatch rejectionHeld;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setup() {
+        integrationService = new IntegrationService();
+        ReflectionTestUtils.setField(integrationService, "metrics", new Metrics());
+        ReflectionTestUtils.setField(integrationService, "aiqOrgName", "org");
+        ReflectionTestUtils.setField(integrationService, "aiqUsername", "user");
+        ReflectionTestUtils.setField(integrationService, "aiqPassword", "password");
+        ReflectionTestUtils.setField(integrationService, "aiqScope", "integration");
+        ReflectionTestUtils.setField(integrationService, "maxConnections", 4);
+        ReflectionTestUtils.setField(integrationService, "connectTimeout", TIMEOUT_MILLIS);
+        ReflectionTestUtils.setField(integrationService, "readTimeout", TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        integrationService.closeClient();
+        if (platform != null) {
+            platform.stop(0);
+            platformExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void oneTokenRequestForConcurrentCallers() throws Exception {
+        startPlatform();
+        integrationService.register("http://localhost/aiq/integration/", "secret");
+        assertEquals(1, tokenRequests.size());
+
+        // every caller is told the token has expired, and needs a new one
+        expiredToken = "token1";
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(CALLERS);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> {
+                    start.await();
+                    return integrationService.register("http://localhost/aiq/integration/", "secret");
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(2, tokenRequests.size());
+    }
+
+    @Test
+    public void lateRejectionKeepsNewToken() throws Exception {
+        startPlatform();
+        integrationService.register("http://localhost/aiq/integration/", "secret");
+        assertEquals(1, tokenRequests.size());
+
+        expiredToken = "token1";
+        rejectionHeld = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> late = callers.submit(() -> integrationService.register("http://localhost/aiq/integration/", "secret"));
+            assertTrue(rejectionHeld.await(10, TimeUnit.SECONDS));
+            // rejected at once, which fetches token2
+            assertTrue(callers.submit(() -> integrationService.register("http://localhost/aiq/integration/", "secret")).get(10, TimeUnit.SECONDS));
+            assertEquals(2, tokenRequests.size());
+
+            // the rejection of token1 arrives after token2 replaced it, and must not drop token2
+            release.countDown();
+            assertTrue(late.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            callers.shutdownNow();
+        }
+        assertEquals(2, tokenRequests.size());
+    }
+
+    @Test
+    public void tokenRefreshedBeforeExpiry() throws Exception {
+        expiresIn = "1";
+        startPlatform();
+        integrationService.register("http://localhost/aiq/integration/", "secret");
+        assertEquals(1, tokenRequests.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tokenRequests.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Token was not refreshed", tokenRequests.size() >= 2);
+        long refreshedAfter = tokenRequests.get(1) - tokensIssued.get(0);
+        assertTrue("Refreshed after " + refreshedAfter + " ms", refreshedAfter < 1000);
+    }
+
+    @Test(timeout = 20 * TIMEOUT_MILLIS)
+    public void timeoutWhenPlatformDoesNotAnswer() throws Exception {
+        // connections are accepted by the backlog, but nothing is ever read or written
+        try (ServerSocket platform = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            ReflectionTestUtils.setField(integrationService, "aiqUrl", "http://localhost:" + platform.getLocalPort() + "/api/");
+            integrationService.createClient();
+
+            long start = System.nanoTime();
+            try {
+                integrationService.register("http://localhost/aiq/integration/", "secret");
+                fail("Expected the call to time out");
+            } catch (ServerUnavailableException e) {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Took " + elapsed + " ms", elapsed >= TIMEOUT_MILLIS && elapsed < 10 * TIMEOUT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Start a stub of the platform which hands out tokens slowly, so that concurrent callers overlap while waiting.
+     */
+    private void startPlatform() throws IOException {
+        platform = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        platformExecutor = Executors.newCachedThreadPool();
+        platform.setExecutor(platformExecutor);
+        platform.createContext("/api/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/api/")) {
+                respond(exchange, 200, "{\"links\":{\"token\":\"/api/token\"}}");
+            } else if (path.equals("/api/token")) {
+                tokenRequests.add(System.currentTimeMillis());
+                try {
+                    Thread.sleep(TOKEN_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                tokensIssued.add(System.currentTimeMillis());
+                respond(exchange, 200, "{\"access_token\":\"token" + tokenRequests.size() + "\",\"expires_in\":\"" + expiresIn + "\"," +
+                                       "\"links\":{\"adapter\":\"/api/adapter\"}}");
+            } else if (path.equals("/api/adapter")) {
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                boolean rejected = ("Bearer " + expiredToken).equals(authorization);
+                CountDownLatch held = rejectionHeld;
+                if (rejected && held != null && held.getCount() > 0) {
+                    held.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                respond(exchange, rejected ? 401 : 204, null);
+            } else {
+                respond(exchange, 404, null);
+            }
+        });
+        platform.start();
+
+        ReflectionTestUtils.setField(integrationService, "aiqUrl", "http://localhost:" + platform.getAddress().getPort() + "/api/");
+        integrationService.createClient();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        // the request must be read before answering, or the connection is reset while the client still sends it
+        try (InputStream in = exchange.getRequestBody()) {
+            while (in.read() >= 0) {
+                // discard
+            }
+        }
+        if (json == null) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+}